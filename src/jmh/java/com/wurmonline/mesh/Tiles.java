@@ -0,0 +1,16 @@
+package com.wurmonline.mesh;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod. Tile ids don't match the real ones.
+ */
+public class Tiles {
+    public enum Tile {
+        TILE_DIRT(1), TILE_GRASS(2), TILE_CLAY(3), TILE_TAR(4), TILE_PEAT(5);
+
+        public final byte id;
+
+        Tile(int id) {
+            this.id = (byte) id;
+        }
+    }
+}
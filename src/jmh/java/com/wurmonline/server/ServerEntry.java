@@ -0,0 +1,12 @@
+package com.wurmonline.server;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod
+ */
+public class ServerEntry {
+    public float actionTimer = 1f;
+
+    public float getActionTimer() {
+        return actionTimer;
+    }
+}
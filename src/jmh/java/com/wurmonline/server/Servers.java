@@ -0,0 +1,8 @@
+package com.wurmonline.server;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod
+ */
+public class Servers {
+    public static ServerEntry localServer = new ServerEntry();
+}
@@ -0,0 +1,59 @@
+package com.wurmonline.server.behaviours;
+
+import com.wurmonline.server.creatures.Creature;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod
+ */
+public class Action {
+    private final short number;
+    private final Creature performer;
+    private float nextTick = 0f;
+    private float counter = 1f;
+    private int timeLeft = 0;
+
+    public Action(short number) {
+        this(number, null);
+    }
+
+    public Action(short number, Creature performer) {
+        this.number = number;
+        this.performer = performer;
+    }
+
+    public Creature getPerformer() {
+        return performer;
+    }
+
+    public short getNumber() {
+        return number;
+    }
+
+    public float getNextTick() {
+        return nextTick;
+    }
+
+    public void setNextTick(float nextTick) {
+        this.nextTick = nextTick;
+    }
+
+    public float getCounterAsFloat() {
+        return counter;
+    }
+
+    public void setCounter(float counter) {
+        this.counter = counter;
+    }
+
+    public int getTimeLeft() {
+        return timeLeft;
+    }
+
+    public void setTimeLeft(int timeLeft) {
+        this.timeLeft = timeLeft;
+    }
+
+    public int currentSecond() {
+        return (int) counter;
+    }
+}
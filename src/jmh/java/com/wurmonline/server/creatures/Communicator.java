@@ -0,0 +1,9 @@
+package com.wurmonline.server.creatures;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod
+ */
+public class Communicator {
+    public void sendActionControl(String actionString, boolean start, int timeLeft) {
+    }
+}
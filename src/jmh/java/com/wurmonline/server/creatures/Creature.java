@@ -0,0 +1,40 @@
+package com.wurmonline.server.creatures;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod
+ */
+public class Creature {
+    private final long wurmId;
+    private final int tileX, tileY;
+    private final Communicator communicator = new Communicator();
+
+    public Creature(long wurmId, int tileX, int tileY) {
+        this.wurmId = wurmId;
+        this.tileX = tileX;
+        this.tileY = tileY;
+    }
+
+    public boolean isPlayer() {
+        return true;
+    }
+
+    public Communicator getCommunicator() {
+        return communicator;
+    }
+
+    public void sendActionControl(String actionString, boolean start, int timeLeft) {
+        communicator.sendActionControl(actionString, start, timeLeft);
+    }
+
+    public long getWurmId() {
+        return wurmId;
+    }
+
+    public int getTileX() {
+        return tileX;
+    }
+
+    public int getTileY() {
+        return tileY;
+    }
+}
@@ -0,0 +1,22 @@
+package com.wurmonline.server.items;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod
+ */
+public class Item {
+    private final long wurmId;
+    private final float quality;
+
+    public Item(long wurmId, float quality) {
+        this.wurmId = wurmId;
+        this.quality = quality;
+    }
+
+    public long getWurmId() {
+        return wurmId;
+    }
+
+    public float getCurrentQualityLevel() {
+        return quality;
+    }
+}
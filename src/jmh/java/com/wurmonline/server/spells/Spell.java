@@ -0,0 +1,18 @@
+package com.wurmonline.server.spells;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod
+ */
+public class Spell {
+    public final int number;
+    private final String name;
+
+    public Spell(int number, String name) {
+        this.number = number;
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
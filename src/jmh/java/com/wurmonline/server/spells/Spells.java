@@ -0,0 +1,12 @@
+package com.wurmonline.server.spells;
+
+/**
+ * Benchmark stand-in, only has the members used by the mod
+ */
+public class Spells {
+    public static Spell[] spells = new Spell[0];
+
+    public static Spell[] getAllSpells() {
+        return spells;
+    }
+}
@@ -0,0 +1,72 @@
+package net.bdew.wurm.timerfix;
+
+import com.wurmonline.mesh.Tiles;
+import com.wurmonline.server.Servers;
+import com.wurmonline.server.behaviours.Action;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the hooks injected into sendActionControl/setTimeLeft/getCounterAsFloat calls and flatten, for an action
+ * using the global multiplier (read through the {@link ActionTimer} call site) and for one with an actionTimers
+ * override (read from the per-action table). The static field read is what injected code originally did.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActionTimerBenchmark {
+    private static final short ACTION = 150;
+
+    @Param({"global", "override"})
+    public String source;
+
+    private Action act;
+    private byte type;
+    private int time;
+    private float counter;
+
+    @Setup
+    public void setup() {
+        Properties properties = new Properties();
+        if (source.equals("override"))
+            properties.setProperty("actionTimers", ACTION + ":5");
+        TimerConfig.load(properties);
+
+        Servers.localServer.actionTimer = 5f;
+        ActionTimer.update(5f);
+        TimerHooks.buildActionTable();
+        TimerHooks.buildFlattenTable();
+
+        act = new Action(ACTION);
+        type = Tiles.Tile.TILE_DIRT.id;
+        time = 150;
+        counter = 1f;
+    }
+
+    @Benchmark
+    public int staticField() {
+        return Math.max((int) (time / Servers.localServer.getActionTimer()), 0);
+    }
+
+    @Benchmark
+    public int startTimer() {
+        return TimerHooks.startTimer(time, ACTION, null, 0);
+    }
+
+    @Benchmark
+    public float scaleCounter() {
+        counter += 0.1f;
+        return TimerHooks.scaleCounter(counter, time, ACTION, null, 0f);
+    }
+
+    @Benchmark
+    public boolean shouldFlattenTick() {
+        counter += 0.1f;
+        return TimerHooks.shouldFlattenTick(act, false, counter, type, false);
+    }
+}
@@ -0,0 +1,253 @@
+package net.bdew.wurm.timerfix;
+
+import com.wurmonline.mesh.Tiles;
+import com.wurmonline.server.Servers;
+import com.wurmonline.server.behaviours.Action;
+import com.wurmonline.server.creatures.Creature;
+import com.wurmonline.server.items.Item;
+import com.wurmonline.server.spells.Spell;
+import com.wurmonline.server.spells.Spells;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drives simulated players through the timer hooks from several threads and reports throughput, per-call latency
+ * percentiles, GC and allocation.
+ * <p>
+ * Usage: gradle loadTest -PloadTestArgs="-threads 8 -players 500 -duration 30 -mix flatten=40,level=10,spell=20,improve=15,sow=15
+ * -tiles TILE_DIRT=60,TILE_CLAY=20,TILE_TAR=10,TILE_PEAT=10 -config file"
+ * <p>
+ * Latencies include the cost of System.nanoTime, so they are only comparable between runs on the same machine.
+ */
+public class HookLoadTest {
+    enum Op {FLATTEN, LEVEL, SPELL, IMPROVE, SOW}
+
+    private static final short ACTION_FLATTEN = 532;
+    private static final short ACTION_LEVEL = 150;
+    private static final short ACTION_SOW = 152;
+    private static final int BUCKETS = TimerMetrics.Histogram.bucket(Long.MAX_VALUE) + 1;
+
+    private static class Player {
+        final Creature creature;
+        final Item tool;
+        final Action flatten, level, sow;
+        final byte tile;
+        float counter = 1f;
+
+        Player(long id, byte tile) {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            this.creature = new Creature(id, rnd.nextInt(4096), rnd.nextInt(4096));
+            this.tool = new Item(id + 1_000_000, 1 + rnd.nextInt(100));
+            this.flatten = new Action(ACTION_FLATTEN, creature);
+            this.level = new Action(ACTION_LEVEL, creature);
+            this.sow = new Action(ACTION_SOW, creature);
+            this.tile = tile;
+        }
+    }
+
+    private static class Worker extends Thread {
+        final Player[] players;
+        final Op[] mix;
+        final Spell[] spells;
+        final long[][] histograms = new long[Op.values().length][BUCKETS];
+        final long[] counts = new long[Op.values().length];
+        final CountDownLatch start;
+        volatile boolean running = true;
+        long allocated;
+        int sink;
+
+        Worker(int n, Player[] players, Op[] mix, Spell[] spells, CountDownLatch start) {
+            super("HookLoadTest-" + n);
+            this.players = players;
+            this.mix = mix;
+            this.spells = spells;
+            this.start = start;
+        }
+
+        private int call(Op op, Player p, ThreadLocalRandom rnd) {
+            switch (op) {
+                case FLATTEN:
+                    p.counter += 0.1f;
+                    return TimerHooks.shouldFlattenTick(p.flatten, false, p.counter, p.tile, false) ? 1 : 0;
+                case LEVEL:
+                    p.counter += 0.1f;
+                    return TimerHooks.shouldFlattenTick(p.level, false, p.counter, p.tile, false) ? 1 : 0;
+                case SPELL:
+                    return TimerHooks.getCastingTime(spells[rnd.nextInt(spells.length)], 150);
+                case IMPROVE:
+                    int cached = TimerHooks.cachedImproveTime(p.creature, p.tool);
+                    if (cached >= 0) return cached;
+                    int time = (int) TimerHooks.improveTime(50.0, 20 + rnd.nextInt(200));
+                    return TimerHooks.storeImproveTime(p.creature, p.tool, TimerHooks.startTimer(time, -1, p.creature, 0));
+                case SOW:
+                    p.counter += 0.1f;
+                    return TimerHooks.startTimer(200, ACTION_SOW, p.creature, 0) + (int) TimerHooks.scaleCounter(p.counter, 200, ACTION_SOW, p.creature, 0f);
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long startAlloc = PatchRegistry.allocated();
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            int idx = 0;
+            while (running) {
+                Player p = players[idx];
+                idx = idx + 1 < players.length ? idx + 1 : 0;
+                Op op = mix[rnd.nextInt(mix.length)];
+                long t0 = System.nanoTime();
+                sink += call(op, p, rnd);
+                long t = System.nanoTime() - t0;
+                histograms[op.ordinal()][TimerMetrics.Histogram.bucket(t)]++;
+                counts[op.ordinal()]++;
+            }
+            allocated = PatchRegistry.allocated() - startAlloc;
+        }
+    }
+
+    /**
+     * @return list with each key repeated by its weight, for picking with a single random index
+     */
+    private static <T> List<T> weighted(String spec, java.util.function.Function<String, T> parse) {
+        List<T> result = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            T value = parse.apply(parts[0].trim());
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            for (int i = 0; i < weight; i++)
+                result.add(value);
+        }
+        return result;
+    }
+
+    private static long percentile(long[] histogram, long total, double p) {
+        long threshold = (long) Math.ceil(total * p), seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= threshold) return TimerMetrics.Histogram.lowerBound(i);
+        }
+        return TimerMetrics.Histogram.lowerBound(histogram.length - 1);
+    }
+
+    private static long gcCount() {
+        long sum = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            sum += Math.max(gc.getCollectionCount(), 0);
+        return sum;
+    }
+
+    private static long gcTime() {
+        long sum = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            sum += Math.max(gc.getCollectionTime(), 0);
+        return sum;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        opts.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        opts.put("players", "500");
+        opts.put("duration", "30");
+        opts.put("warmup", "5");
+        opts.put("mix", "flatten=40,level=10,spell=20,improve=15,sow=15");
+        opts.put("tiles", "TILE_DIRT=60,TILE_CLAY=20,TILE_TAR=10,TILE_PEAT=10");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-") || !opts.containsKey(args[i].substring(1)) && !args[i].equals("-config"))
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            opts.put(args[i].substring(1), args[i + 1]);
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("enabledPatches", "FLATTEN, SPELLS, IMPROVE, SOW");
+        properties.setProperty("spellBlacklist", "Drain Health");
+        properties.setProperty("patchCache", "false");
+        if (opts.containsKey("config")) {
+            try (java.io.InputStream in = new java.io.FileInputStream(opts.get("config"))) {
+                properties.load(in);
+            }
+        }
+        new TimerFix().configure(properties);
+
+        Servers.localServer.actionTimer = 5f;
+        ActionTimer.update(5f);
+        Spell[] spells = {new Spell(0, "Bless"), new Spell(1, "Drain Health"), new Spell(2, "Heal"), new Spell(3, "Light of Fo")};
+        Spells.spells = spells;
+        TimerHooks.buildActionTable();
+        TimerHooks.buildZones();
+        TimerHooks.buildFlattenTable();
+        TimerHooks.buildSpellTable();
+
+        int threads = Integer.parseInt(opts.get("threads"));
+        int playerCount = Integer.parseInt(opts.get("players"));
+        int duration = Integer.parseInt(opts.get("duration"));
+        int warmup = Integer.parseInt(opts.get("warmup"));
+        Op[] mix = weighted(opts.get("mix"), s -> Op.valueOf(s.toUpperCase())).toArray(new Op[0]);
+        List<Byte> tiles = weighted(opts.get("tiles"), s -> Tiles.Tile.valueOf(s).id);
+
+        // Warm up the hooks on a single thread so the measured run starts with compiled code
+        Player[] warm = {new Player(1, tiles.get(0))};
+        Worker warmer = new Worker(0, warm, mix, spells, new CountDownLatch(0));
+        warmer.start();
+        Thread.sleep(warmup * 1000L);
+        warmer.running = false;
+        warmer.join();
+
+        Worker[] workers = new Worker[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long nextId = 1;
+        for (int t = 0; t < threads; t++) {
+            Player[] players = new Player[Math.max(1, playerCount / threads + (t < playerCount % threads ? 1 : 0))];
+            for (int i = 0; i < players.length; i++)
+                players[i] = new Player(nextId++, tiles.get(rnd.nextInt(tiles.size())));
+            workers[t] = new Worker(t + 1, players, mix, spells, start);
+            workers[t].start();
+        }
+
+        long gcCountStart = gcCount(), gcTimeStart = gcTime();
+        long t0 = System.nanoTime();
+        start.countDown();
+        Thread.sleep(duration * 1000L);
+        for (Worker worker : workers)
+            worker.running = false;
+        for (Worker worker : workers)
+            worker.join();
+        double elapsed = (System.nanoTime() - t0) / 1e9;
+
+        long[][] histograms = new long[Op.values().length][BUCKETS];
+        long[] counts = new long[Op.values().length];
+        long total = 0, allocated = 0;
+        for (Worker worker : workers) {
+            for (Op op : Op.values()) {
+                counts[op.ordinal()] += worker.counts[op.ordinal()];
+                for (int i = 0; i < BUCKETS; i++)
+                    histograms[op.ordinal()][i] += worker.histograms[op.ordinal()][i];
+            }
+            allocated += worker.allocated;
+        }
+        for (long count : counts) total += count;
+
+        System.out.println(String.format("%d threads, %d players, mix %s, tiles %s, %.1fs", threads, playerCount, opts.get("mix"), opts.get("tiles"), elapsed));
+        System.out.println(String.format("Throughput: %.0f calls/s total, %.0f calls/s per thread", total / elapsed, total / elapsed / threads));
+        System.out.println(String.format("GC: %d collections, %dms, allocated %.2f bytes/call", gcCount() - gcCountStart, gcTime() - gcTimeStart, total > 0 ? (double) allocated / total : 0));
+        System.out.println();
+        System.out.println(String.format("%-8s %12s %8s %8s %8s %8s", "op", "calls", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns"));
+        for (Op op : Op.values()) {
+            long count = counts[op.ordinal()];
+            if (count == 0) continue;
+            long[] h = histograms[op.ordinal()];
+            System.out.println(String.format("%-8s %12d %8d %8d %8d %8d", op.name().toLowerCase(), count,
+                    percentile(h, count, 0.5), percentile(h, count, 0.9), percentile(h, count, 0.99), percentile(h, count, 0.999)));
+        }
+    }
+}
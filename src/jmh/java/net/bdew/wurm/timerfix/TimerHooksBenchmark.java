@@ -0,0 +1,91 @@
+package net.bdew.wurm.timerfix;
+
+import com.wurmonline.mesh.Tiles;
+import com.wurmonline.server.Servers;
+import com.wurmonline.server.behaviours.Action;
+import com.wurmonline.server.spells.Spell;
+import com.wurmonline.server.spells.Spells;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of the hooks called from patched code
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimerHooksBenchmark {
+    @Param({"TILE_DIRT", "TILE_CLAY", "TILE_TAR", "TILE_PEAT"})
+    public String tile;
+
+    @Param({"1", "150"})
+    public short action;
+
+    private Action act;
+    private byte type;
+    private float counter;
+
+    private Spell spell, blacklistedSpell;
+
+    @Setup
+    public void setup() {
+        Properties properties = new Properties();
+        properties.setProperty("enabledPatches", "FLATTEN, SPELLS");
+        properties.setProperty("spellBlacklist", "Drain Health");
+        properties.setProperty("patchCache", "false");
+        new TimerFix().configure(properties);
+
+        Servers.localServer.actionTimer = 5f;
+        ActionTimer.update(5f);
+
+        spell = new Spell(2, "Heal");
+        blacklistedSpell = new Spell(1, "Drain Health");
+        Spells.spells = new Spell[]{new Spell(0, "Bless"), blacklistedSpell, spell};
+
+        TimerHooks.buildSpellTable();
+        TimerHooks.buildFlattenTable();
+
+        act = new Action(action);
+        type = Tiles.Tile.valueOf(tile).id;
+        counter = 1f;
+    }
+
+    @Benchmark
+    public boolean shouldFlattenTick() {
+        counter += 0.1f;
+        return TimerHooks.shouldFlattenTick(act, false, counter, type, false);
+    }
+
+    @Benchmark
+    public int getCastingTime() {
+        return TimerHooks.getCastingTime(spell, 150);
+    }
+
+    @Benchmark
+    public int getCastingTimeBlacklisted() {
+        return TimerHooks.getCastingTime(blacklistedSpell, 150);
+    }
+
+    @Benchmark
+    public int scaleSecond() {
+        return TimerHooks.scaleSecond(30, 400, action, null);
+    }
+
+    @Benchmark
+    public float scaleCounter() {
+        counter += 0.1f;
+        return TimerHooks.scaleCounter(counter, 400, action, null, 0f);
+    }
+
+    @Benchmark
+    public int tickGate() {
+        counter += 0.1f;
+        act.setCounter(counter);
+        return TimerHooks.tickGate(act, 5);
+    }
+}
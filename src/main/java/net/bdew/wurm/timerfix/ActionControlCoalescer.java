@@ -0,0 +1,161 @@
+package net.bdew.wurm.timerfix;
+
+import com.wurmonline.server.creatures.Communicator;
+import com.wurmonline.server.creatures.Creature;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * Merges action progress bar updates (sendActionControl) per player.
+ * <p>
+ * The first update for a player in a server tick is sent right away, later ones in the same tick or within the
+ * minimum interval only replace the pending state, which is sent by {@link #flush} at the end of the tick. The client
+ * only shows the latest state, so the dropped updates would have been replaced before being seen.
+ * <p>
+ * Updates the server sends directly, like the stop when an action ends or is interrupted, are newer than anything
+ * pending, so they drop the pending state instead of being followed by a stale progress bar.
+ */
+public class ActionControlCoalescer {
+    private static final long EVICT_AFTER = 60_000_000_000L;
+
+    static final String COMMUNICATOR = "com.wurmonline.server.creatures.Communicator";
+    static final String CREATURE = "com.wurmonline.server.creatures.Creature";
+
+    private static class State {
+        // Set if the pending update was sent through Creature.sendActionControl rather than the communicator
+        Creature creature;
+        String action;
+        boolean start;
+        int time;
+        boolean pending;
+        long lastSent;
+        long lastTick = -1;
+    }
+
+    private final long minInterval;
+    private final IdentityHashMap<Communicator, State> states = new IdentityHashMap<>();
+    private long tick = 0;
+    private long sent = 0, suppressed = 0, dropped = 0;
+    // Set while the coalescer itself is sending, so its own updates aren't treated as direct ones
+    private boolean sending = false;
+
+    /**
+     * @param minInterval minimum time between updates sent to a player, in nanoseconds
+     */
+    ActionControlCoalescer(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * @return descriptor of the TimerHooks.sendActionControl overload for calls on the class, null if it's not
+     * a communicator or creature
+     */
+    static String hookDescriptor(ClassPool cp, String owner) {
+        try {
+            CtClass cls = cp.get(owner);
+            if (cls.subtypeOf(cp.get(COMMUNICATOR)))
+                return "(Lcom/wurmonline/server/creatures/Communicator;Ljava/lang/String;ZI)V";
+            else if (cls.subtypeOf(cp.get(CREATURE)))
+                return "(Lcom/wurmonline/server/creatures/Creature;Ljava/lang/String;ZI)V";
+        } catch (NotFoundException e) {
+            TimerFix.logWarning("Unable to resolve sendActionControl owner: " + e);
+        }
+        return null;
+    }
+
+    private void deliver(Communicator comm, Creature creature, String action, boolean start, int time) {
+        sending = true;
+        try {
+            if (creature != null)
+                creature.sendActionControl(action, start, time);
+            else
+                comm.sendActionControl(action, start, time);
+        } finally {
+            sending = false;
+        }
+    }
+
+    /**
+     * @param creature creature the call was made on, null if it was made on the communicator
+     */
+    synchronized void send(Communicator comm, Creature creature, String action, boolean start, int time) {
+        State state = states.get(comm);
+        if (state == null) {
+            state = new State();
+            states.put(comm, state);
+        }
+        long now = System.nanoTime();
+        if (!state.pending && state.lastTick != tick && (state.lastTick < 0 || now - state.lastSent >= minInterval)) {
+            deliver(comm, creature, action, start, time);
+            state.lastSent = now;
+            state.lastTick = tick;
+            sent++;
+        } else {
+            if (state.pending) suppressed++;
+            state.creature = creature;
+            state.action = action;
+            state.start = start;
+            state.time = time;
+            state.pending = true;
+        }
+    }
+
+    /**
+     * Called at the start of Communicator.sendActionControl, drops pending state if the server sent an update directly
+     */
+    synchronized void sentDirectly(Communicator comm) {
+        if (sending) return;
+        State state = states.get(comm);
+        if (state == null) return;
+        if (state.pending) {
+            state.pending = false;
+            state.creature = null;
+            state.action = null;
+            dropped++;
+        }
+        state.lastSent = System.nanoTime();
+        state.lastTick = tick;
+    }
+
+    /**
+     * Sends pending updates, called at the end of each server tick
+     */
+    synchronized void flush() {
+        long now = System.nanoTime();
+        Iterator<IdentityHashMap.Entry<Communicator, State>> it = states.entrySet().iterator();
+        while (it.hasNext()) {
+            IdentityHashMap.Entry<Communicator, State> entry = it.next();
+            State state = entry.getValue();
+            if (state.pending) {
+                if (now - state.lastSent >= minInterval) {
+                    deliver(entry.getKey(), state.creature, state.action, state.start, state.time);
+                    state.pending = false;
+                    state.creature = null;
+                    state.action = null;
+                    state.lastSent = now;
+                    state.lastTick = tick;
+                    sent++;
+                }
+            } else if (now - state.lastSent > EVICT_AFTER) {
+                it.remove();
+            }
+        }
+        tick++;
+    }
+
+    synchronized long getSent() {
+        return sent;
+    }
+
+    synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
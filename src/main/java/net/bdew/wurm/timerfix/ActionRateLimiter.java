@@ -0,0 +1,80 @@
+package net.bdew.wurm.timerfix;
+
+import java.util.Arrays;
+
+/**
+ * Per-creature token buckets limiting how many actions per minute get shortened timers.
+ * <p>
+ * Buckets are kept in primitive arrays indexed through a {@link LongIndexMap} keyed by wurm id. Entries of creatures
+ * that weren't seen for a while (logged out) are dropped when the map fills up.
+ */
+public class ActionRateLimiter {
+    private static final long EVICT_AFTER = 10L * 60 * 1_000_000_000L;
+
+    private final float capacity;
+    private final float refillPerNano;
+
+    private final LongIndexMap index = new LongIndexMap(256);
+    private float[] tokens = new float[index.capacity()];
+    private long[] lastSeen = new long[index.capacity()];
+    private boolean[] limited = new boolean[index.capacity()];
+
+    /**
+     * @param perMinute actions per minute that get shortened timers
+     * @param burst     actions that can be done at once before the limit kicks in
+     */
+    ActionRateLimiter(float perMinute, float burst) {
+        this.capacity = burst;
+        this.refillPerNano = perMinute / 60_000_000_000f;
+    }
+
+    private int slot(long id, long now) {
+        int idx = index.get(id);
+        if (idx < 0) {
+            if (index.size() == index.capacity())
+                index.compact(i -> now - lastSeen[i] < EVICT_AFTER, (from, to) -> {
+                    tokens[to] = tokens[from];
+                    lastSeen[to] = lastSeen[from];
+                    limited[to] = limited[from];
+                });
+            idx = index.add(id);
+            if (idx >= tokens.length) {
+                tokens = Arrays.copyOf(tokens, index.capacity());
+                lastSeen = Arrays.copyOf(lastSeen, index.capacity());
+                limited = Arrays.copyOf(limited, index.capacity());
+            }
+            tokens[idx] = capacity;
+            lastSeen[idx] = now;
+            limited[idx] = false;
+        } else {
+            tokens[idx] = Math.min(capacity, tokens[idx] + (now - lastSeen[idx]) * refillPerNano);
+            lastSeen[idx] = now;
+        }
+        return idx;
+    }
+
+    /**
+     * Takes a token for a new action
+     *
+     * @return true if the creature is over its budget and should get vanilla timers
+     */
+    synchronized boolean consume(long id, long now) {
+        if (id == -1) return false;
+        int idx = slot(id, now);
+        if (tokens[idx] >= 1f) {
+            tokens[idx] -= 1f;
+            limited[idx] = false;
+        } else {
+            limited[idx] = true;
+        }
+        return limited[idx];
+    }
+
+    /**
+     * @return true if the last action the creature started was over budget
+     */
+    synchronized boolean isLimited(long id) {
+        int idx = index.get(id);
+        return idx >= 0 && limited[idx];
+    }
+}
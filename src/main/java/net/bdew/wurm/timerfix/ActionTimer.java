@@ -0,0 +1,80 @@
+package net.bdew.wurm.timerfix;
+
+import com.wurmonline.server.Servers;
+
+import java.lang.invoke.*;
+
+/**
+ * Holds the action timer multiplier used by all injected code.
+ * <p>
+ * The value is exposed through a {@link MutableCallSite} so the JIT can treat it as a constant,
+ * the call site is retargeted (and dependent compiled code invalidated) only when the multiplier changes.
+ * {@link TimerHooks} reads it through {@link #get()} for actions without a per-action override or zone, which is
+ * the common case, so injected hook calls for those fold the multiplier into a constant. Overrides and zones come
+ * from tables that are rebuilt whenever it changes.
+ */
+public class ActionTimer {
+    private static final MutableCallSite callSite;
+    private static final MethodHandle invoker;
+    private static volatile float current = Float.NaN;
+
+    static LoadGovernor governor = null;
+
+    static {
+        try {
+            // Until the server is up read the value directly, it will be replaced by a constant in refresh()
+            callSite = new MutableCallSite(MethodHandles.lookup().findStatic(ActionTimer.class, "readServerTimer", MethodType.methodType(float.class)));
+            invoker = callSite.dynamicInvoker();
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static float readServerTimer() {
+        return Servers.localServer.getActionTimer();
+    }
+
+    public static float get() {
+        try {
+            return (float) invoker.invokeExact();
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Sets a new multiplier, invalidating code that has it folded in
+     *
+     * @return true if the value changed
+     */
+    static synchronized boolean update(float value) {
+        if (value == current) return false;
+        current = value;
+        callSite.setTarget(MethodHandles.constant(float.class, value));
+        MutableCallSite.syncAll(new MutableCallSite[]{callSite});
+        return true;
+    }
+
+    /**
+     * @return multiplier adjusted by the load governor, if enabled
+     */
+    static float governed(float multiplier) {
+        return governor == null ? multiplier : governor.adjust(multiplier);
+    }
+
+    /**
+     * Picks up changes to the server action timer and load governor, cheap enough to call every server tick
+     *
+     * @return true if the value changed
+     */
+    static boolean refresh() {
+        float value = Servers.localServer.getActionTimer();
+        value = governed(value);
+        if (value == current) return false;
+        if (update(value)) {
+            TimerFix.logInfo("Action timer multiplier is now " + value);
+            return true;
+        }
+        return false;
+    }
+}
@@ -1,7 +1,5 @@
 package net.bdew.wurm.timerfix;
 
-import javassist.ClassPool;
-import javassist.CtClass;
 import javassist.CtMethod;
 import javassist.bytecode.*;
 
@@ -10,19 +8,29 @@ import java.util.logging.Logger;
 public class FlattenPatcher {
     private static final Logger logger = Logger.getLogger("FlattenPatcher");
 
-    public static void patchFlatten(ClassPool classPool) {
-        try {
-            CtClass ctFlattening = classPool.getCtClass("com.wurmonline.server.behaviours.Flattening");
-            CtMethod ctFlatten = ctFlattening.getMethod("flatten", "(JLcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;IIIIIIFLcom/wurmonline/server/behaviours/Action;)Z");
+    private static final String CLASS = "com.wurmonline.server.behaviours.Flattening";
+    private static final String METHOD = "flatten";
+    private static final String DESCR = "(JLcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;IIIIIIFLcom/wurmonline/server/behaviours/Action;)Z";
 
+    public static void register(PatchRegistry registry) {
+        registry.addMethod(TimerFix.Patches.FLATTEN, CLASS, METHOD, DESCR, "flatten", (ctFlattening, ctFlatten, id) -> {
+            PatchScan.MethodScan scan = registry.scanned(CLASS, METHOD, DESCR);
             // Do dark bytecode voodoo
-            doPatch(ctFlatten);
-        } catch (Throwable t) {
-            throw new RuntimeException(t);
+            doPatch(ctFlatten, scan == null ? -1 : scan.firstCall("decodeType"));
+        });
+
+        if (TimerHooks.terrainUpdateCoalescer != null) {
+            registry.addCall(TimerFix.Patches.FLATTEN, CLASS, METHOD, DESCR, "sendChangedTiles", "coalesce", (m, id) -> {
+                if (m.getSignature().equals("(IIIIZZ)V")) {
+                    m.replace("net.bdew.wurm.timerfix.TimerHooks.sendChangedTiles($1,$2,$3,$4,$5,$6);");
+                    logger.info(String.format("sendChangedTiles routed through coalescer at line %d", m.getLineNumber()));
+                } else {
+                    logger.warning("Unexpected sendChangedTiles signature " + m.getSignature() + ", not coalescing");
+                }
+            });
         }
     }
 
-
     private static int findNextOp(int op, CodeIterator ci) throws BadBytecode {
         while (ci.hasNext()) {
             int pos = ci.next();
@@ -53,7 +61,10 @@ public class FlattenPatcher {
         ci.write(newCode.get(), start);
     }
 
-    private static void doPatch(CtMethod m) throws BadBytecode {
+    /**
+     * @param decodeTypeHint offset of the first decodeType call found by prescan, -1 to search from the start
+     */
+    private static void doPatch(CtMethod m, int decodeTypeHint) throws BadBytecode {
         MethodInfo mi = m.getMethodInfo();
         CodeAttribute ca = mi.getCodeAttribute();
         ConstPool constPool = ca.getConstPool();
@@ -67,6 +78,14 @@ public class FlattenPatcher {
 
         boolean appliedPatch1 = false, appliedPatch2 = false, appliedActionControl = false;
 
+        // Skip straight to the decodeType call if prescan found it and the in-pool code still has it there
+        if (decodeTypeHint >= 0 && decodeTypeHint < codeIterator.getCodeLength()
+                && codeIterator.byteAt(decodeTypeHint) == CodeIterator.INVOKESTATIC
+                && "decodeType".equals(constPool.getMethodrefName(codeIterator.u16bitAt(decodeTypeHint + 1)))) {
+            codeIterator.move(decodeTypeHint);
+            logger.info(String.format("Using prescan hint, decodeType at %d", decodeTypeHint));
+        }
+
         while (codeIterator.hasNext()) {
             int pos = codeIterator.next();
             int op = codeIterator.byteAt(pos);
@@ -124,15 +143,30 @@ public class FlattenPatcher {
                 int ref = codeIterator.u16bitAt(pos + 1);
                 if (constPool.getMethodrefName(ref).equals("sendActionControl")) {
                     appliedActionControl = true;
+                    // Time is on top of the stack, scale it the same way as other action starts
                     Bytecode newCode = new Bytecode(constPool);
-                    newCode.add(Bytecode.I2F);
-                    newCode.addGetstatic("com.wurmonline.server.Servers", "localServer", "Lcom/wurmonline/server/ServerEntry;");
-                    newCode.addInvokevirtual("com.wurmonline.server.ServerEntry", "getActionTimer", "()F");
-                    newCode.add(Bytecode.FDIV);
-                    newCode.add(Bytecode.F2I);
+                    newCode.addAload(actionVar);
+                    newCode.addInvokevirtual("com.wurmonline.server.behaviours.Action", "getNumber", "()S");
+                    newCode.addAload(actionVar);
+                    newCode.addInvokevirtual("com.wurmonline.server.behaviours.Action", "getPerformer", "()Lcom/wurmonline/server/creatures/Creature;");
+                    newCode.addIconst(0);
+                    newCode.addInvokestatic("net.bdew.wurm.timerfix.TimerHooks", "startTimer", "(IILcom/wurmonline/server/creatures/Creature;I)I");
                     codeIterator.move(pos);
-                    codeIterator.insert(newCode.get());
+                    int call = codeIterator.insert(newCode.get()) + newCode.length();
                     logger.info(String.format("sendActionControl patched at %d", pos));
+                    if (TimerHooks.actionControlCoalescer != null) {
+                        String owner = constPool.getMethodrefClassName(ref);
+                        String hookDescr = ActionControlCoalescer.hookDescriptor(m.getDeclaringClass().getClassPool(), owner);
+                        if (hookDescr != null) {
+                            // Same operands on the stack, so the static hook can take the place of the virtual call
+                            int hook = constPool.addMethodrefInfo(constPool.addClassInfo("net.bdew.wurm.timerfix.TimerHooks"), "sendActionControl", hookDescr);
+                            codeIterator.writeByte(CodeIterator.INVOKESTATIC, call);
+                            codeIterator.write16bit(hook, call + 1);
+                            logger.info(String.format("sendActionControl on %s routed through coalescer at %d", owner, call));
+                        } else {
+                            logger.warning(String.format("sendActionControl on %s at %d is not coalesced", owner, call));
+                        }
+                    }
                     break;
                 }
             }
@@ -140,6 +174,9 @@ public class FlattenPatcher {
 
         if (!appliedActionControl) throw new RuntimeException("Flatten patch application failed");
 
+        // The hook call needs more stack than the original code
+        ca.computeMaxStack();
+
         while (codeIterator.hasNext()) {
             int pos = codeIterator.next();
             int op = codeIterator.byteAt(pos);
@@ -0,0 +1,117 @@
+package net.bdew.wurm.timerfix;
+
+/**
+ * Short lived memo of improve action times, keyed by creature, tool and tool quality bucket.
+ * <p>
+ * Entries are stored in primitive arrays as 4-way sets, when a set is full the entry to replace is picked with a
+ * clock (second chance) sweep over the set. Entries expire after a fixed time so enchantment and skill changes are
+ * picked up quickly, and the whole cache is cleared when timer settings change.
+ */
+public class ImproveCache {
+    private static final int WAYS = 4;
+
+    private final long ttl;
+    private final float qlBucket;
+    private final int setMask;
+
+    private final long[] creatures, tools, expires;
+    private final int[] qualities, values;
+    // Separate from expires, nanoTime can be any value so there's no safe "empty" timestamp
+    private final boolean[] live, referenced;
+    private final byte[] hands;
+
+    private long hits = 0, misses = 0;
+
+    /**
+     * @param size     number of entries, rounded up to a multiple of 4 sets
+     * @param ttl      entry lifetime in nanoseconds
+     * @param qlBucket width of tool quality buckets, tools within the same bucket share entries
+     */
+    ImproveCache(int size, long ttl, float qlBucket) {
+        int sets = Integer.highestOneBit(Math.max(size / WAYS, 1) * 2 - 1);
+        this.ttl = ttl;
+        this.qlBucket = qlBucket;
+        this.setMask = sets - 1;
+        creatures = new long[sets * WAYS];
+        tools = new long[sets * WAYS];
+        expires = new long[sets * WAYS];
+        qualities = new int[sets * WAYS];
+        values = new int[sets * WAYS];
+        live = new boolean[sets * WAYS];
+        referenced = new boolean[sets * WAYS];
+        hands = new byte[sets];
+    }
+
+    private int set(long creature, long tool, int quality) {
+        long h = creature * 0x9E3779B97F4A7C15L ^ tool * 0xC2B2AE3D27D4EB4FL ^ quality;
+        return (int) (h ^ (h >>> 32)) & setMask;
+    }
+
+    private int quality(float ql) {
+        return (int) (ql / qlBucket);
+    }
+
+    /**
+     * @return cached time or -1 if there is no live entry
+     */
+    synchronized int get(long creature, long tool, float ql, long now) {
+        int quality = quality(ql);
+        int base = set(creature, tool, quality) * WAYS;
+        for (int i = base; i < base + WAYS; i++) {
+            if (live[i] && expires[i] - now > 0 && creatures[i] == creature && tools[i] == tool && qualities[i] == quality) {
+                referenced[i] = true;
+                hits++;
+                return values[i];
+            }
+        }
+        misses++;
+        return -1;
+    }
+
+    synchronized void put(long creature, long tool, float ql, int value, long now) {
+        int quality = quality(ql);
+        int set = set(creature, tool, quality);
+        int base = set * WAYS;
+
+        int slot = -1;
+        for (int i = base; i < base + WAYS; i++) {
+            if (!live[i] || expires[i] - now <= 0 || (creatures[i] == creature && tools[i] == tool && qualities[i] == quality)) {
+                slot = i;
+                break;
+            }
+        }
+
+        if (slot < 0) {
+            int hand = hands[set];
+            while (referenced[base + hand]) {
+                referenced[base + hand] = false;
+                hand = (hand + 1) % WAYS;
+            }
+            slot = base + hand;
+            hands[set] = (byte) ((hand + 1) % WAYS);
+        }
+
+        creatures[slot] = creature;
+        tools[slot] = tool;
+        qualities[slot] = quality;
+        values[slot] = value;
+        expires[slot] = now + ttl;
+        live[slot] = true;
+        referenced[slot] = false;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < expires.length; i++) {
+            live[i] = false;
+            referenced[i] = false;
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
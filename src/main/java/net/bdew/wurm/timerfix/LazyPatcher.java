@@ -0,0 +1,93 @@
+package net.bdew.wurm.timerfix;
+
+import javassist.*;
+import org.gotti.wurmunlimited.modloader.classhooks.HookManager;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Defers patching of rarely used classes until they are first loaded.
+ * <p>
+ * A javassist Translator is chained in front of the one set on the modlauncher class loader, which patches deferred
+ * classes in the pool right before the loader defines them. Neither the loader nor its translator are exposed, so this
+ * is done reflectively - if that fails nothing is deferred and everything is patched at startup as usual.
+ */
+public class LazyPatcher {
+    private static class Pending {
+        final PatchRegistry registry;
+        final PatchCache cache;
+
+        Pending(PatchRegistry registry, PatchCache cache) {
+            this.registry = registry;
+            this.cache = cache;
+        }
+    }
+
+    private static final Map<String, List<Pending>> pending = new HashMap<>();
+    private static boolean installed = false, failed = false;
+
+    private static class ChainedTranslator implements Translator {
+        private final Translator next;
+
+        ChainedTranslator(Translator next) {
+            this.next = next;
+        }
+
+        @Override
+        public void start(ClassPool pool) throws NotFoundException, CannotCompileException {
+            if (next != null) next.start(pool);
+        }
+
+        @Override
+        public void onLoad(ClassPool pool, String classname) throws NotFoundException, CannotCompileException {
+            List<Pending> patches;
+            synchronized (LazyPatcher.class) {
+                patches = pending.remove(classname);
+            }
+            if (patches != null) {
+                for (Pending p : patches) {
+                    synchronized (p.registry) {
+                        p.registry.applyDeferred(pool, p.cache, classname);
+                    }
+                }
+            }
+            if (next != null) next.onLoad(pool, classname);
+        }
+    }
+
+    private static boolean install() {
+        if (installed || failed) return installed;
+        try {
+            Loader loader = (Loader) HookManager.class.getMethod("getLoader").invoke(HookManager.getInstance());
+            Field field = Loader.class.getDeclaredField("translator");
+            field.setAccessible(true);
+            field.set(loader, new ChainedTranslator((Translator) field.get(loader)));
+            installed = true;
+        } catch (Exception e) {
+            TimerFix.logException("Unable to hook class loading, lazy patching disabled", e);
+            failed = true;
+        }
+        return installed;
+    }
+
+    /**
+     * Marks classes of a registry to be patched when they are loaded, must be called before {@link PatchRegistry#apply}
+     */
+    static synchronized void defer(PatchRegistry registry, PatchCache cache, Collection<String> classNames) {
+        List<String> deferred = new ArrayList<>();
+        for (String name : classNames)
+            if (registry.getClasses().contains(name)) deferred.add(name);
+        if (deferred.isEmpty() || !install()) return;
+        registry.defer(deferred);
+        for (String name : deferred)
+            pending.computeIfAbsent(name, k -> new ArrayList<>()).add(new Pending(registry, cache));
+    }
+
+    /**
+     * @return deferred classes that weren't loaded yet
+     */
+    static synchronized Set<String> getPending() {
+        return new HashSet<>(pending.keySet());
+    }
+}
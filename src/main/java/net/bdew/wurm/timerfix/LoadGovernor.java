@@ -0,0 +1,87 @@
+package net.bdew.wurm.timerfix;
+
+/**
+ * Scales the action timer multiplier back toward 1.0 while the server main loop is lagging.
+ * <p>
+ * The work done in each main loop tick (Server.run) is timed by hooks at its start and end and smoothed with an
+ * exponential moving average. The time between ticks isn't used, the fixed-rate scheduler runs late ticks back to
+ * back to catch up, so it stays near nominal even under load. Once per window the scale steps down if the average
+ * is over budget, and steps back up only after it drops below budget * recoverRatio.
+ */
+public class LoadGovernor {
+    private static final long WINDOW = 1_000_000_000L;
+    private static final float STEP = 0.1f;
+    private static final double ALPHA = 0.1;
+
+    private final double budget;
+    private final double recoverBelow;
+    private final float floor, ceiling;
+
+    private long tickStart = 0;
+    private long windowStart = 0;
+    private double average = 0;
+    private float scale = 1f;
+
+    /**
+     * @param budgetMs     tick duration considered overloaded, in milliseconds
+     * @param recoverRatio fraction of the budget tick duration needs to drop under before recovering
+     * @param floor        minimum effective multiplier
+     * @param ceiling      maximum effective multiplier
+     */
+    LoadGovernor(float budgetMs, float recoverRatio, float floor, float ceiling) {
+        this.budget = budgetMs * 1_000_000.0;
+        this.recoverBelow = budget * recoverRatio;
+        this.floor = floor;
+        this.ceiling = ceiling;
+    }
+
+    /**
+     * Called at the start of Server.run
+     */
+    void tickStarted(long now) {
+        tickStart = now;
+    }
+
+    /**
+     * Called at the end of Server.run, including when it throws
+     */
+    void tickEnded(long now) {
+        if (tickStart == 0) return;
+        long duration = now - tickStart;
+        tickStart = 0;
+        average = average == 0 ? duration : average + (duration - average) * ALPHA;
+    }
+
+    /**
+     * Called once per server poll
+     *
+     * @return true if the scale changed and the effective multiplier needs to be recalculated
+     */
+    boolean sample(long now) {
+        if (windowStart == 0) {
+            windowStart = now;
+            return false;
+        }
+
+        if (now - windowStart < WINDOW || average == 0) return false;
+        windowStart = now;
+
+        float old = scale;
+        if (average > budget)
+            scale = Math.max(0f, scale - STEP);
+        else if (average < recoverBelow)
+            scale = Math.min(1f, scale + STEP);
+
+        if (scale != old) {
+            TimerFix.logInfo(String.format("Average tick %.1fms, action timer scale %.1f -> %.1f", average / 1e6, old, scale));
+            return true;
+        }
+
+        return false;
+    }
+
+    float adjust(float multiplier) {
+        float effective = 1f + (multiplier - 1f) * scale;
+        return Math.min(Math.max(effective, floor), ceiling);
+    }
+}
@@ -0,0 +1,107 @@
+package net.bdew.wurm.timerfix;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Open-addressing hash map from primitive long keys to dense entry numbers.
+ * <p>
+ * Entries are numbered from 0 in insertion order and owners keep their values in their own primitive arrays indexed
+ * by entry number, sized to {@link #capacity()}. Entry numbers only change on {@link #clear} and {@link #compact}.
+ * Not thread safe, owners synchronize access.
+ */
+class LongIndexMap {
+    interface Mover {
+        /**
+         * Called by {@link #compact} for each kept entry that gets a new number, owners move their values
+         */
+        void move(int from, int to);
+    }
+
+    // Entry number + 1 per hash slot, 0 for empty. Always at least twice the capacity, so the load stays under 1/2
+    private int[] slots;
+    private long[] entryKeys;
+    private int size = 0;
+
+    LongIndexMap(int capacity) {
+        entryKeys = new long[Math.max(capacity, 8)];
+        slots = new int[Integer.highestOneBit(entryKeys.length * 4 - 1)];
+    }
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int slot(long key) {
+        int mask = slots.length - 1;
+        int idx = hash(key, mask);
+        while (slots[idx] != 0 && entryKeys[slots[idx] - 1] != key)
+            idx = (idx + 1) & mask;
+        return idx;
+    }
+
+    private void rebuild(int tableSize) {
+        slots = new int[tableSize];
+        for (int i = 0; i < size; i++)
+            slots[slot(entryKeys[i])] = i + 1;
+    }
+
+    /**
+     * @return entry number of the key or -1 if it's not in the map
+     */
+    int get(long key) {
+        return slots[slot(key)] - 1;
+    }
+
+    /**
+     * @return entry number of the key, added as entry {@link #size()} if it's not in the map yet. Adding may increase
+     * {@link #capacity()}, owners need to grow their value arrays to match.
+     */
+    int add(long key) {
+        int idx = slot(key);
+        if (slots[idx] != 0) return slots[idx] - 1;
+        if (size == entryKeys.length) {
+            entryKeys = Arrays.copyOf(entryKeys, entryKeys.length * 2);
+            rebuild(slots.length * 2);
+            idx = slot(key);
+        }
+        entryKeys[size] = key;
+        slots[idx] = ++size;
+        return size - 1;
+    }
+
+    long key(int entry) {
+        return entryKeys[entry];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return entryKeys.length;
+    }
+
+    void clear() {
+        size = 0;
+        Arrays.fill(slots, 0);
+    }
+
+    /**
+     * Drops entries that don't pass the filter, remaining entries are renumbered keeping their order
+     */
+    void compact(IntPredicate keep, Mover mover) {
+        int live = 0;
+        for (int i = 0; i < size; i++) {
+            if (!keep.test(i)) continue;
+            if (live != i) {
+                entryKeys[live] = entryKeys[i];
+                mover.move(i, live);
+            }
+            live++;
+        }
+        size = live;
+        rebuild(slots.length);
+    }
+}
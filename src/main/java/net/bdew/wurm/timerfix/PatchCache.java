@@ -0,0 +1,150 @@
+package net.bdew.wurm.timerfix;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * On-disk cache of patched classes.
+ * <p>
+ * Every patch step is keyed by the bytes of the class as it is in the pool before the step (so server updates
+ * and changes made by other mods invalidate it), a description of the step, the effective config and the mod jar.
+ * On a hit the cached result is put in the pool instead of running the patch.
+ */
+public class PatchCache {
+    interface Patch {
+        void apply(CtClass cls) throws Exception;
+    }
+
+    private final File dir;
+    private final String baseKey;
+    private final Set<String> used = new HashSet<>();
+    private int hits = 0, misses = 0;
+
+    private PatchCache(File dir, String baseKey) {
+        this.dir = dir;
+        this.baseKey = baseKey;
+    }
+
+    /**
+     * @param configKey description of all config values that affect patching
+     * @return a cache instance or null if cache can't be used
+     */
+    static PatchCache open(File dir, String configKey) {
+        try {
+            CodeSource src = PatchCache.class.getProtectionDomain().getCodeSource();
+            URL modJar = src == null ? null : src.getLocation();
+            if (modJar == null) {
+                TimerFix.logWarning("Unable to locate mod jar, patch cache disabled");
+                return null;
+            }
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                TimerFix.logWarning("Unable to create patch cache directory " + dir + ", patch cache disabled");
+                return null;
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            try (InputStream in = modJar.openStream()) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    digest.update(buf, 0, n);
+            }
+            digest.update(configKey.getBytes(StandardCharsets.UTF_8));
+            return new PatchCache(dir, toHex(digest.digest()));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            TimerFix.logException("Error initializing patch cache, patch cache disabled", e);
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private static byte[] classBytes(CtClass cls) throws Exception {
+        byte[] bytes = cls.toBytecode();
+        cls.defrost();
+        return bytes;
+    }
+
+    /**
+     * Runs a patch step on a class, or restores its result from the cache
+     *
+     * @param cache    cache to use, may be null in which case the patch always runs
+     * @param patchKey unique description of the patch step
+     */
+    static void apply(PatchCache cache, ClassPool cp, String className, String patchKey, Patch patch) throws Exception {
+        if (cache == null)
+            patch.apply(cp.getCtClass(className));
+        else
+            cache.apply(cp, className, patchKey, patch);
+    }
+
+    private synchronized void apply(ClassPool cp, String className, String patchKey, Patch patch) throws Exception {
+        CtClass cls = cp.getCtClass(className);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(classBytes(cls));
+        digest.update(patchKey.getBytes(StandardCharsets.UTF_8));
+        digest.update(baseKey.getBytes(StandardCharsets.UTF_8));
+        String name = className + "-" + toHex(digest.digest()) + ".class";
+        File file = new File(dir, name);
+        used.add(name);
+
+        if (file.isFile()) {
+            try {
+                cp.makeClass(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+                hits++;
+                return;
+            } catch (IOException | RuntimeException e) {
+                TimerFix.logException("Error loading cached class " + file + ", patching live", e);
+            }
+        } else {
+            TimerFix.logInfo(String.format("No cached result for %s in %s (server, config or mod changed), patching live", patchKey, className));
+        }
+
+        misses++;
+        patch.apply(cls);
+
+        try {
+            File tmp = new File(dir, name + ".tmp");
+            Files.write(tmp.toPath(), classBytes(cls));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            TimerFix.logException("Error writing cached class " + file, e);
+        }
+    }
+
+    /**
+     * Removes entries that weren't used in this run and logs stats
+     *
+     * @param pending classes that will be patched later, their entries are kept
+     */
+    synchronized void finish(Set<String> pending) {
+        File[] files = dir.listFiles();
+        int removed = 0;
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                int sep = name.lastIndexOf('-');
+                if (sep > 0 && pending.contains(name.substring(0, sep))) continue;
+                if (f.isFile() && !used.contains(name) && f.delete())
+                    removed++;
+            }
+        }
+        TimerFix.logInfo(String.format("Patch cache: %d hits, %d misses, %d stale entries removed", hits, misses, removed));
+    }
+}
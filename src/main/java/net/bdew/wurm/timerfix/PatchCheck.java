@@ -0,0 +1,80 @@
+package net.bdew.wurm.timerfix;
+
+import javassist.ClassPool;
+import javassist.NotFoundException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Applies all enabled patches to a standalone class pool and reports what matched, without starting a server.
+ * <p>
+ * Usage: java -cp timerfix.jar:javassist.jar:modlauncher.jar net.bdew.wurm.timerfix.PatchCheck [-config file] [jar or directory...]
+ * <p>
+ * Target classes are looked up in the given jars or directories first (server.jar, or recorded copies of just the
+ * patched classes) and then on the class path. Exits with status 1 if any target is missing or didn't match.
+ */
+public class PatchCheck {
+    private static boolean check(ClassPool pool, PatchRegistry registry) {
+        long start = System.nanoTime(), startAlloc = PatchRegistry.allocated();
+        try {
+            registry.apply(pool, null);
+        } catch (RuntimeException ignored) {
+            // Failures are reported below
+        }
+        long time = System.nanoTime() - start, alloc = PatchRegistry.allocated() - startAlloc;
+
+        List<String> problems = new ArrayList<>();
+        new TreeMap<>(registry.getPrescanProblems()).forEach((target, problem) -> problems.add("PRESCAN   " + target + ": " + problem));
+        registry.getFailures().forEach((cls, e) -> problems.add("FAILED    " + cls + ": " + e));
+        for (String target : registry.getUnmatched())
+            problems.add("UNMATCHED " + target);
+
+        // Make sure the patched classes can still be written out
+        for (String cls : registry.getClasses()) {
+            if (registry.getFailures().containsKey(cls)) continue;
+            try {
+                pool.get(cls).toBytecode();
+            } catch (Exception e) {
+                problems.add("INVALID   " + cls + ": " + e);
+            }
+        }
+
+        System.out.println(String.format("%s: %d classes in %.1fms, allocated %dkb", registry.getPhase(), registry.getClasses().size(), time / 1e6, alloc / 1024));
+        registry.getPatchTimes().forEach((patch, t) -> System.out.println(String.format("  %-10s %8.1fms %8dkb", patch, t / 1e6, registry.getPatchAllocs().get(patch) / 1024)));
+        for (String problem : problems)
+            System.out.println("  " + problem);
+
+        return problems.isEmpty();
+    }
+
+    public static void main(String[] args) throws IOException, NotFoundException {
+        File config = new File("mods/timerfix.properties");
+        ClassPool pool = new ClassPool();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-config") && i + 1 < args.length)
+                config = new File(args[++i]);
+            else
+                pool.appendClassPath(args[i]);
+        }
+        pool.appendSystemPath();
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(config)) {
+            properties.load(in);
+        }
+        new TimerFix().configure(properties);
+
+        boolean ok = check(pool, TimerFix.preInitPatches());
+        ok &= check(pool, TimerFix.initPatches());
+
+        System.out.println(ok ? "All patches applied" : "Some patches failed");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,336 @@
+package net.bdew.wurm.timerfix;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * Collects patch targets grouped by class and applies them with a single instrumentation pass per target method.
+ * <p>
+ * Call edits are dispatched through a map keyed by the enclosing method (name + descriptor) and the called
+ * method name, so each class is fetched, walked and cached once no matter how many patches touch it.
+ */
+public class PatchRegistry {
+    /**
+     * targetId is the {@link TimerMetrics} id of the enclosing method, only valid if metrics are enabled
+     */
+    interface CallEdit {
+        void edit(MethodCall call, int targetId) throws CannotCompileException;
+    }
+
+    interface MethodEdit {
+        void edit(CtClass cls, CtMethod method, int targetId) throws Exception;
+    }
+
+    private static class CallEntry {
+        final TimerFix.Patches patch;
+        final String key;
+        final CallEdit edit;
+
+        CallEntry(TimerFix.Patches patch, String key, CallEdit edit) {
+            this.patch = patch;
+            this.key = key;
+            this.edit = edit;
+        }
+    }
+
+    private static class MethodEntry {
+        final TimerFix.Patches patch;
+        final String key;
+        final MethodEdit edit;
+
+        MethodEntry(TimerFix.Patches patch, String key, MethodEdit edit) {
+            this.patch = patch;
+            this.key = key;
+            this.edit = edit;
+        }
+    }
+
+    private static class LocalVar {
+        final String type, init;
+
+        LocalVar(String type, String init) {
+            this.type = type;
+            this.init = init;
+        }
+    }
+
+    private static class MethodTarget {
+        final String name, descr;
+        final Map<String, LocalVar> locals = new LinkedHashMap<>();
+        final Map<String, CallEntry> calls = new LinkedHashMap<>();
+        final List<MethodEntry> methodEdits = new ArrayList<>();
+        int matched = 0;
+        int metricsId = -1;
+
+        MethodTarget(String name, String descr) {
+            this.name = name;
+            this.descr = descr;
+        }
+    }
+
+    private final String phase;
+    private final Map<String, Map<String, MethodTarget>> classes = new LinkedHashMap<>();
+    private final EnumMap<TimerFix.Patches, Long> patchTimes = new EnumMap<>(TimerFix.Patches.class);
+    private final EnumMap<TimerFix.Patches, Long> patchAllocs = new EnumMap<>(TimerFix.Patches.class);
+    private final List<String> unmatched = new ArrayList<>();
+    private final Map<String, Exception> failures = new LinkedHashMap<>();
+    private final Set<String> deferred = new HashSet<>();
+    private PatchScan scan = null;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    PatchRegistry(String phase) {
+        this.phase = phase;
+    }
+
+    private MethodTarget target(TimerFix.Patches patch, String cls, String method, String descr) {
+        MethodTarget target = classes.computeIfAbsent(cls, k -> new LinkedHashMap<>()).computeIfAbsent(method + descr, k -> new MethodTarget(method, descr));
+        if (TimerMetrics.enabled && patch != null && target.metricsId < 0)
+            target.metricsId = TimerMetrics.register(patch, cls, method);
+        return target;
+    }
+
+    /**
+     * Registers an edit for calls to a method named {@code call} inside the target method
+     *
+     * @param key description of the edit, used for caching - must change if the generated code changes
+     */
+    void addCall(TimerFix.Patches patch, String cls, String method, String descr, String call, String key, CallEdit edit) {
+        MethodTarget target = target(patch, cls, method, descr);
+        if (target.calls.containsKey(call))
+            TimerFix.logWarning(String.format("Duplicate edit for %s in %s.%s, ignoring", call, cls, method));
+        else
+            target.calls.put(call, new CallEntry(patch, key, edit));
+    }
+
+    /**
+     * Registers an edit that operates on the whole target method
+     *
+     * @param key description of the edit, used for caching - must change if the generated code changes
+     */
+    void addMethod(TimerFix.Patches patch, String cls, String method, String descr, String key, MethodEdit edit) {
+        target(patch, cls, method, descr).methodEdits.add(new MethodEntry(patch, key, edit));
+    }
+
+    /**
+     * Adds a local variable initialized at the start of the target method, which call edits can reference.
+     * Used to make method parameters available to replacement code, where $1.. refer to the call arguments.
+     */
+    void addLocal(String cls, String method, String descr, String name, String type, String init) {
+        MethodTarget target = target(null, cls, method, descr);
+        LocalVar old = target.locals.get(name);
+        if (old != null && !(old.type.equals(type) && old.init.equals(init)))
+            throw new RuntimeException(String.format("Conflicting definitions of local %s in %s.%s", name, cls, method));
+        target.locals.put(name, new LocalVar(type, init));
+    }
+
+    /**
+     * @return parameter type descriptors of a method descriptor
+     */
+    static List<String> paramTypes(String descr) {
+        List<String> result = new ArrayList<>();
+        int pos = 1;
+        while (descr.charAt(pos) != ')') {
+            int start = pos;
+            while (descr.charAt(pos) == '[') pos++;
+            if (descr.charAt(pos) == 'L')
+                pos = descr.indexOf(';', pos);
+            pos++;
+            result.add(descr.substring(start, pos));
+        }
+        return result;
+    }
+
+    private Map<String, Map<String, Set<String>>> scanTargets() {
+        Map<String, Map<String, Set<String>>> result = new HashMap<>();
+        classes.forEach((cls, targets) -> {
+            Map<String, Set<String>> methods = new HashMap<>();
+            targets.forEach((key, target) -> methods.put(key, target.calls.keySet()));
+            result.put(cls, methods);
+        });
+        return result;
+    }
+
+    /**
+     * @return prescan results for a target method, null if prescan is disabled or the method wasn't found.
+     * Only valid during {@link #apply}.
+     */
+    PatchScan.MethodScan scanned(String cls, String method, String descr) {
+        return scan == null ? null : scan.get(cls, method, descr);
+    }
+
+    private static String cacheKey(Map<String, MethodTarget> targets) {
+        StringBuilder sb = new StringBuilder();
+        for (MethodTarget target : targets.values()) {
+            sb.append(target.name).append(target.descr);
+            target.locals.forEach((name, local) -> sb.append(' ').append(name).append('=').append(local.init));
+            target.calls.forEach((call, entry) -> sb.append(' ').append(call).append('=').append(entry.key));
+            target.methodEdits.forEach(entry -> sb.append(' ').append(entry.key));
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, or 0 if the JVM can't tell
+     */
+    static long allocated() {
+        if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled())
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    private void addTime(TimerFix.Patches patch, long start, long startAlloc) {
+        patchTimes.merge(patch, System.nanoTime() - start, Long::sum);
+        patchAllocs.merge(patch, allocated() - startAlloc, Long::sum);
+    }
+
+    private void applyClass(CtClass ctClass, Map<String, MethodTarget> targets) throws Exception {
+        ExprEditor editor = new ExprEditor() {
+            @Override
+            public void edit(MethodCall m) throws CannotCompileException {
+                MethodTarget target = targets.get(m.where().getName() + m.where().getSignature());
+                if (target == null) return;
+                CallEntry entry = target.calls.get(m.getMethodName());
+                if (entry == null) return;
+                long start = System.nanoTime(), startAlloc = allocated();
+                entry.edit.edit(m, target.metricsId);
+                target.matched++;
+                addTime(entry.patch, start, startAlloc);
+            }
+        };
+
+        for (MethodTarget target : targets.values()) {
+            CtMethod method = ctClass.getMethod(target.name, target.descr);
+            for (Map.Entry<String, LocalVar> local : target.locals.entrySet()) {
+                method.addLocalVariable(local.getKey(), ctClass.getClassPool().get(local.getValue().type));
+                method.insertBefore(local.getKey() + " = " + local.getValue().init + ";");
+            }
+            if (!target.calls.isEmpty()) {
+                method.instrument(editor);
+                if (target.matched == 0) {
+                    unmatched.add(ctClass.getName() + "." + target.name + target.descr);
+                    TimerFix.logWarning(String.format("No calls matched in %s.%s%s", ctClass.getName(), target.name, target.descr));
+                }
+            }
+            for (MethodEntry entry : target.methodEdits) {
+                long start = System.nanoTime(), startAlloc = allocated();
+                entry.edit.edit(ctClass, method, target.metricsId);
+                addTime(entry.patch, start, startAlloc);
+            }
+            if (target.metricsId >= 0) {
+                method.addLocalVariable("__timerfixStart", CtClass.longType);
+                method.insertBefore(TimerMetrics.timeStart());
+                method.insertAfter(TimerMetrics.timeEnd(target.metricsId));
+            }
+        }
+    }
+
+    /**
+     * Marks classes to be skipped by {@link #apply}, they are patched by {@link #applyDeferred} instead
+     */
+    void defer(Collection<String> classNames) {
+        deferred.addAll(classNames);
+    }
+
+    private void applyTo(ClassPool cp, PatchCache cache, String cls) throws Exception {
+        Map<String, MethodTarget> targets = classes.get(cls);
+        PatchCache.apply(cache, cp, cls, cacheKey(targets), ctClass -> applyClass(ctClass, targets));
+    }
+
+    /**
+     * Applies all registered patches, a failure in one class doesn't stop the others from being patched
+     *
+     * @throws RuntimeException after all classes are processed if any of them failed
+     */
+    void apply(ClassPool cp, PatchCache cache) {
+        long totalStart = System.nanoTime();
+
+        if (TimerFix.prescan)
+            scan = PatchScan.run(cp, scanTargets());
+
+        for (Map.Entry<String, Map<String, MethodTarget>> entry : classes.entrySet()) {
+            if (deferred.contains(entry.getKey())) {
+                TimerFix.logInfo(String.format("Deferred %s (%d methods) until first load", entry.getKey(), entry.getValue().size()));
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                applyTo(cp, cache, entry.getKey());
+                TimerFix.logInfo(String.format("Patched %s (%d methods) in %.1fms", entry.getKey(), entry.getValue().size(), (System.nanoTime() - start) / 1e6));
+            } catch (Exception e) {
+                failures.put(entry.getKey(), e);
+                TimerFix.logException("Error patching " + entry.getKey(), e);
+            }
+        }
+
+        patchTimes.forEach((patch, time) -> TimerFix.logInfo(String.format("Patch %s took %.1fms, allocated %dkb", patch, time / 1e6, patchAllocs.get(patch) / 1024)));
+        TimerFix.logInfo(String.format("%s: patched %d classes in %.1fms, %d deferred", phase, classes.size() - failures.size() - deferred.size(), (System.nanoTime() - totalStart) / 1e6, deferred.size()));
+
+        if (!failures.isEmpty())
+            throw new RuntimeException(String.format("%s: failed to patch %s", phase, failures.keySet()), failures.values().iterator().next());
+    }
+
+    /**
+     * Patches a deferred class, called when it's about to be loaded. Errors are logged and the class is left unpatched,
+     * as there is no good way to fail at that point.
+     */
+    void applyDeferred(ClassPool cp, PatchCache cache, String cls) {
+        long start = System.nanoTime();
+        try {
+            applyTo(cp, cache, cls);
+            TimerFix.logInfo(String.format("Patched %s on first load in %.1fms", cls, (System.nanoTime() - start) / 1e6));
+        } catch (Exception e) {
+            failures.put(cls, e);
+            TimerFix.logException("Error patching " + cls + " on first load, leaving it unpatched", e);
+        }
+    }
+
+    String getPhase() {
+        return phase;
+    }
+
+    Set<String> getClasses() {
+        return classes.keySet();
+    }
+
+    /**
+     * @return time spent in edits of each patch in nanoseconds, cached classes don't count
+     */
+    Map<TimerFix.Patches, Long> getPatchTimes() {
+        return patchTimes;
+    }
+
+    /**
+     * @return bytes allocated by edits of each patch
+     */
+    Map<TimerFix.Patches, Long> getPatchAllocs() {
+        return patchAllocs;
+    }
+
+    /**
+     * @return target methods where none of the registered call edits matched
+     */
+    List<String> getUnmatched() {
+        return unmatched;
+    }
+
+    Map<String, Exception> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return problems found by prescan, keyed by class or method
+     */
+    Map<String, String> getPrescanProblems() {
+        return scan == null ? Collections.emptyMap() : scan.getProblems();
+    }
+}
@@ -0,0 +1,136 @@
+package net.bdew.wurm.timerfix;
+
+import javassist.ClassPool;
+import javassist.bytecode.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only scan of patch target classes, run in parallel before instrumentation.
+ * <p>
+ * Class files are read straight from the pool's class path on the common fork-join pool, so missing classes, methods
+ * and call sites are reported before anything is modified. Call offsets and local variable slots are kept as hints
+ * for bytecode patchers - they describe the class file on disk, so patchers must check them against the in-pool
+ * bytecode, which other mods may have changed.
+ */
+public class PatchScan {
+    static class MethodScan {
+        // Called method name -> offsets of invoke instructions calling it
+        final Map<String, List<Integer>> calls = new HashMap<>();
+        // Local variable name -> slot, only if the class has debug info
+        final Map<String, Integer> locals = new HashMap<>();
+
+        /**
+         * @return offset of the first call to the method or -1 if there is none
+         */
+        int firstCall(String name) {
+            List<Integer> offsets = calls.get(name);
+            return offsets == null ? -1 : offsets.get(0);
+        }
+    }
+
+    private final Map<String, Map<String, MethodScan>> classes = new ConcurrentHashMap<>();
+    private final Map<String, String> problems = new ConcurrentHashMap<>();
+
+    private static String invokedName(ConstPool cp, CodeIterator ci, int pos) {
+        switch (ci.byteAt(pos)) {
+            case Opcode.INVOKEVIRTUAL:
+            case Opcode.INVOKESTATIC:
+            case Opcode.INVOKESPECIAL:
+                return cp.getMethodrefName(ci.u16bitAt(pos + 1));
+            case Opcode.INVOKEINTERFACE:
+                return cp.getInterfaceMethodrefName(ci.u16bitAt(pos + 1));
+            default:
+                return null;
+        }
+    }
+
+    private static MethodScan scanMethod(MethodInfo mi) throws BadBytecode {
+        MethodScan result = new MethodScan();
+        CodeAttribute ca = mi.getCodeAttribute();
+        if (ca == null) return result;
+
+        CodeIterator ci = ca.iterator();
+        while (ci.hasNext()) {
+            int pos = ci.next();
+            String name = invokedName(ca.getConstPool(), ci, pos);
+            if (name != null)
+                result.calls.computeIfAbsent(name, k -> new ArrayList<>()).add(pos);
+        }
+
+        LocalVariableAttribute lva = (LocalVariableAttribute) ca.getAttribute(LocalVariableAttribute.tag);
+        if (lva != null) {
+            for (int i = 0; i < lva.tableLength(); i++)
+                result.locals.putIfAbsent(lva.variableName(i), lva.index(i));
+        }
+
+        return result;
+    }
+
+    private void scanClass(ClassPool cp, String cls, Map<String, Set<String>> methods) {
+        ClassFile cf;
+        URL url = cp.find(cls);
+        try (InputStream in = url == null ? null : url.openStream()) {
+            if (in == null) {
+                problems.put(cls, "class not found");
+                return;
+            }
+            cf = new ClassFile(new DataInputStream(new BufferedInputStream(in)));
+        } catch (Exception e) {
+            problems.put(cls, "unable to read class: " + e);
+            return;
+        }
+
+        Map<String, MethodScan> found = new HashMap<>();
+        for (Object obj : cf.getMethods()) {
+            MethodInfo mi = (MethodInfo) obj;
+            String key = mi.getName() + mi.getDescriptor();
+            Set<String> calls = methods.get(key);
+            if (calls == null) continue;
+            try {
+                MethodScan scan = scanMethod(mi);
+                found.put(key, scan);
+                for (String call : calls)
+                    if (!scan.calls.containsKey(call))
+                        problems.put(cls + "." + key, "no calls to " + call);
+            } catch (BadBytecode e) {
+                problems.put(cls + "." + key, "unable to scan: " + e);
+            }
+        }
+
+        for (String key : methods.keySet())
+            if (!found.containsKey(key))
+                problems.put(cls + "." + key, "method not found");
+
+        classes.put(cls, found);
+    }
+
+    /**
+     * @param targets class name -> method name + descriptor -> names of methods whose calls will be edited
+     */
+    static PatchScan run(ClassPool cp, Map<String, Map<String, Set<String>>> targets) {
+        long start = System.nanoTime();
+        PatchScan scan = new PatchScan();
+        targets.entrySet().parallelStream().forEach(e -> scan.scanClass(cp, e.getKey(), e.getValue()));
+        new TreeMap<>(scan.problems).forEach((target, problem) -> TimerFix.logWarning(String.format("Prescan: %s - %s", target, problem)));
+        TimerFix.logInfo(String.format("Prescanned %d classes in %.1fms, %d problems", targets.size(), (System.nanoTime() - start) / 1e6, scan.problems.size()));
+        return scan;
+    }
+
+    /**
+     * @return scan results for the method or null if it wasn't found
+     */
+    MethodScan get(String cls, String method, String descr) {
+        Map<String, MethodScan> methods = classes.get(cls);
+        return methods == null ? null : methods.get(method + descr);
+    }
+
+    Map<String, String> getProblems() {
+        return problems;
+    }
+}
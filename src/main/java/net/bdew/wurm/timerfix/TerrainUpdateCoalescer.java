@@ -0,0 +1,82 @@
+package net.bdew.wurm.timerfix;
+
+import com.wurmonline.server.Players;
+
+import java.util.Arrays;
+
+/**
+ * Merges tile update broadcasts (Players.sendChangedTiles) from flattening and leveling.
+ * <p>
+ * Changed rectangles are grouped by area (a square grid cell), layer and tree destruction flag, and the union of each
+ * group is broadcast once per server tick by {@link #flush}. Mesh heights are still changed right away, only the
+ * broadcast is delayed to the end of the tick. Groups are kept in primitive arrays indexed through a
+ * {@link LongIndexMap}, which is emptied on every flush.
+ */
+public class TerrainUpdateCoalescer {
+    private final int shift;
+
+    private final LongIndexMap index = new LongIndexMap(256);
+    private int[] minX = new int[index.capacity()], minY = new int[index.capacity()], maxX = new int[index.capacity()], maxY = new int[index.capacity()];
+
+    private long received = 0, sent = 0;
+
+    /**
+     * @param cellSize size of merge areas in tiles, rounded down to a power of 2
+     */
+    TerrainUpdateCoalescer(int cellSize) {
+        this.shift = 31 - Integer.numberOfLeadingZeros(Math.max(cellSize, 1));
+    }
+
+    private static long key(int cellX, int cellY, boolean surfaced, boolean destroyTrees) {
+        return ((long) (cellX & 0x3FFFFFFF) << 32) | ((long) (cellY & 0x3FFFFFFF) << 2) | (surfaced ? 2 : 0) | (destroyTrees ? 1 : 0);
+    }
+
+    /**
+     * Replaces Players.sendChangedTiles calls in Flattening.flatten
+     */
+    synchronized void changed(int x, int y, int sizeX, int sizeY, boolean surfaced, boolean destroyTrees) {
+        received++;
+        long key = key(x >> shift, y >> shift, surfaced, destroyTrees);
+        int idx = index.get(key);
+        if (idx < 0) {
+            idx = index.add(key);
+            if (idx >= minX.length) {
+                minX = Arrays.copyOf(minX, index.capacity());
+                minY = Arrays.copyOf(minY, index.capacity());
+                maxX = Arrays.copyOf(maxX, index.capacity());
+                maxY = Arrays.copyOf(maxY, index.capacity());
+            }
+            minX[idx] = x;
+            minY[idx] = y;
+            maxX[idx] = x + sizeX;
+            maxY[idx] = y + sizeY;
+        } else {
+            minX[idx] = Math.min(minX[idx], x);
+            minY[idx] = Math.min(minY[idx], y);
+            maxX[idx] = Math.max(maxX[idx], x + sizeX);
+            maxY[idx] = Math.max(maxY[idx], y + sizeY);
+        }
+    }
+
+    /**
+     * Broadcasts merged updates in the order their areas were first changed, called at the end of each server tick
+     */
+    synchronized void flush() {
+        if (index.size() == 0) return;
+        Players players = Players.getInstance();
+        for (int idx = 0; idx < index.size(); idx++) {
+            long key = index.key(idx);
+            players.sendChangedTiles(minX[idx], minY[idx], maxX[idx] - minX[idx], maxY[idx] - minY[idx], (key & 2) != 0, (key & 1) != 0);
+            sent++;
+        }
+        index.clear();
+    }
+
+    synchronized long getReceived() {
+        return received;
+    }
+
+    synchronized long getSent() {
+        return sent;
+    }
+}
@@ -0,0 +1,92 @@
+package net.bdew.wurm.timerfix;
+
+import javassist.CtMethod;
+import javassist.bytecode.*;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites "act.currentSecond() % N" gate checks in configured methods into calls to {@link TimerHooks#tickGate},
+ * so the gated effect runs at the scaled interval instead of the vanilla one.
+ * <p>
+ * The original interval stays in the bytecode as the argument of the hook, the rewritten code has the same length
+ * as the original so jump targets and stack maps are unaffected.
+ */
+public class TickGatePatcher {
+    private static final Logger logger = Logger.getLogger("TickGatePatcher");
+
+    /**
+     * @param targets method specs in the form of class.method(descriptor)
+     */
+    public static void register(PatchRegistry registry, List<String> targets) {
+        for (String target : targets) {
+            int descrStart = target.indexOf('(');
+            int methodStart = target.lastIndexOf('.', descrStart);
+            if (descrStart < 0 || methodStart < 0)
+                throw new RuntimeException("Invalid tick gate target: " + target);
+            String cls = target.substring(0, methodStart);
+            String method = target.substring(methodStart + 1, descrStart);
+            String descr = target.substring(descrStart);
+            registry.addMethod(TimerFix.Patches.TICKS, cls, method, descr, "tickGate", (ctClass, ctMethod, id) -> doPatch(ctMethod));
+        }
+    }
+
+    private static int readConst(CodeIterator ci, int pos) {
+        int op = ci.byteAt(pos);
+        if (op >= Opcode.ICONST_0 && op <= Opcode.ICONST_5)
+            return op - Opcode.ICONST_0;
+        else if (op == Opcode.BIPUSH)
+            return (byte) ci.byteAt(pos + 1);
+        else if (op == Opcode.SIPUSH)
+            return ci.s16bitAt(pos + 1);
+        else
+            return -1;
+    }
+
+    private static void doPatch(CtMethod m) throws BadBytecode {
+        MethodInfo mi = m.getMethodInfo();
+        CodeAttribute ca = mi.getCodeAttribute();
+        ConstPool constPool = ca.getConstPool();
+        CodeIterator codeIterator = ca.iterator();
+
+        int patched = 0, skipped = 0;
+
+        while (codeIterator.hasNext()) {
+            int pos = codeIterator.next();
+            if (codeIterator.byteAt(pos) != Opcode.INVOKEVIRTUAL) continue;
+
+            int ref = codeIterator.u16bitAt(pos + 1);
+            if (!constPool.getMethodrefName(ref).equals("currentSecond") || !constPool.getMethodrefClassName(ref).equals("com.wurmonline.server.behaviours.Action"))
+                continue;
+
+            // Expected sequence: invokevirtual currentSecond, push N, irem, ifeq/ifne
+            int constPos = codeIterator.next();
+            int interval = readConst(codeIterator, constPos);
+            int remPos = codeIterator.next();
+            int jumpPos = codeIterator.next();
+            int jumpOp = codeIterator.byteAt(jumpPos);
+
+            if (interval <= 0 || codeIterator.byteAt(remPos) != Opcode.IREM || (jumpOp != Opcode.IFEQ && jumpOp != Opcode.IFNE)) {
+                logger.info(String.format("Unsupported currentSecond check at %d in %s", pos, m.getLongName()));
+                skipped++;
+                continue;
+            }
+
+            // Action is already on stack, push the original interval and call the hook, which returns 0 when the gate is open
+            Bytecode newCode = new Bytecode(constPool);
+            for (int i = constPos; i < remPos; i++)
+                newCode.add(codeIterator.byteAt(i));
+            newCode.addInvokestatic("net.bdew.wurm.timerfix.TimerHooks", "tickGate", "(Lcom/wurmonline/server/behaviours/Action;I)I");
+            while (pos + newCode.currentPc() < jumpPos)
+                newCode.add(Bytecode.NOP);
+
+            codeIterator.write(newCode.get(), pos);
+            logger.info(String.format("Gate check with interval %d patched at %d in %s", interval, pos, m.getLongName()));
+            patched++;
+        }
+
+        if (patched == 0)
+            throw new RuntimeException("No gate checks found in " + m.getLongName() + (skipped > 0 ? String.format(" (%d unsupported)", skipped) : ""));
+    }
+}
@@ -0,0 +1,186 @@
+package net.bdew.wurm.timerfix;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable snapshot of config values that are read at runtime by hooks and injected code.
+ * <p>
+ * The current snapshot is swapped atomically when timerfix.properties changes on disk. Values that change
+ * which code gets patched (enabledPatches, tickGates, etc.) are still only read at startup.
+ */
+public final class TimerConfig {
+    // Time the file has to stay unchanged before it's reloaded, editors may write it in several steps
+    private static final long SETTLE_MILLIS = 500;
+    private static final int SETTLE_TRIES = 10;
+
+    private static volatile TimerConfig current = new TimerConfig(new Properties());
+    private static Thread watcher;
+
+    public final Set<String> spellBlacklist;
+    public final int minSpellTimer;
+    public final int minPickTimer;
+    public final int minBreedTimer;
+    public final float flattenTicks;
+    public final float levelTicks;
+    public final Map<String, Float> flattenTileTicks;
+    public final Map<Integer, ActionEntry> actionTimers;
+    public final List<TimerZones.Zone> zones;
+    public final int zoneCellSize;
+
+    /**
+     * Per action number override of the timer multiplier, floor and ceiling are in tenths of a second
+     */
+    public static final class ActionEntry {
+        public final float multiplier;
+        public final int floor, ceiling;
+
+        ActionEntry(float multiplier, int floor, int ceiling) {
+            this.multiplier = multiplier;
+            this.floor = floor;
+            this.ceiling = ceiling;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("x%.2f [%d-%s]", multiplier, floor, ceiling == Integer.MAX_VALUE ? "" : String.valueOf(ceiling));
+        }
+    }
+
+    private TimerConfig(Properties properties) {
+        Set<String> blacklist = new HashSet<>();
+        for (String name : properties.getProperty("spellBlacklist", "").split(",")) {
+            if (!name.trim().isEmpty())
+                blacklist.add(TimerFix.sanitizeSpellName(name));
+        }
+        spellBlacklist = Collections.unmodifiableSet(blacklist);
+
+        minSpellTimer = Integer.parseInt(properties.getProperty("minSpellTimer", "2"));
+        minPickTimer = Integer.parseInt(properties.getProperty("minPickTimer", "0"));
+        minBreedTimer = Integer.parseInt(properties.getProperty("minBreedTimer", "0"));
+
+        flattenTicks = Float.parseFloat(properties.getProperty("flattenTicks", "5"));
+        levelTicks = Float.parseFloat(properties.getProperty("levelTicks", "10"));
+
+        Map<String, Float> tileTicks = new LinkedHashMap<>();
+        for (String entry : properties.getProperty("flattenTileTicks", "TILE_CLAY:30, TILE_TAR:30, TILE_PEAT:30").split(",")) {
+            if (entry.trim().isEmpty()) continue;
+            String[] parts = entry.split(":");
+            tileTicks.put(parts[0].trim(), Float.parseFloat(parts[1].trim()));
+        }
+        flattenTileTicks = Collections.unmodifiableMap(tileTicks);
+
+        Map<Integer, ActionEntry> actions = new TreeMap<>();
+        for (String entry : properties.getProperty("actionTimers", "").split(",")) {
+            if (entry.trim().isEmpty()) continue;
+            String[] parts = entry.split(":");
+            int number = Integer.parseInt(parts[0].trim());
+            if (number < 0 || number > Short.MAX_VALUE)
+                throw new IllegalArgumentException("Invalid action number in actionTimers: " + number);
+            float multiplier = Float.parseFloat(parts[1].trim());
+            int floor = parts.length > 2 ? Math.round(Float.parseFloat(parts[2].trim()) * 10) : 0;
+            int ceiling = parts.length > 3 ? Math.round(Float.parseFloat(parts[3].trim()) * 10) : Integer.MAX_VALUE;
+            actions.put(number, new ActionEntry(multiplier, floor, ceiling));
+        }
+        actionTimers = Collections.unmodifiableMap(actions);
+
+        List<TimerZones.Zone> zoneList = new ArrayList<>();
+        for (String entry : properties.getProperty("timerZones", "").split(",")) {
+            if (!entry.trim().isEmpty())
+                zoneList.add(TimerZones.parse(entry));
+        }
+        zones = Collections.unmodifiableList(zoneList);
+        zoneCellSize = Integer.parseInt(properties.getProperty("zoneCellSize", "64"));
+    }
+
+    public static TimerConfig get() {
+        return current;
+    }
+
+    static void load(Properties properties) {
+        TimerConfig config = new TimerConfig(properties);
+        config.log();
+        current = config;
+    }
+
+    private void log() {
+        TimerFix.logInfo("Spell blacklist: " + String.join(",", spellBlacklist));
+        TimerFix.logInfo("minSpellTimer: " + minSpellTimer);
+        TimerFix.logInfo("minPickTimer: " + (minPickTimer > 0 ? minPickTimer : "disabled"));
+        TimerFix.logInfo("minBreedTimer: " + (minBreedTimer > 0 ? minBreedTimer : "disabled"));
+        TimerFix.logInfo(String.format("flattenTicks: %.1f levelTicks: %.1f", flattenTicks, levelTicks));
+        TimerFix.logInfo("flattenTileTicks: " + flattenTileTicks);
+        TimerFix.logInfo("actionTimers: " + actionTimers);
+        TimerFix.logInfo(String.format("timerZones: %s cell size %d", zones, zoneCellSize));
+    }
+
+    /**
+     * @return file contents once two reads {@link #SETTLE_MILLIS} apart match
+     */
+    private static byte[] readSettled(File file) throws IOException, InterruptedException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        for (int i = 0; i < SETTLE_TRIES; i++) {
+            Thread.sleep(SETTLE_MILLIS);
+            byte[] again = Files.readAllBytes(file.toPath());
+            if (Arrays.equals(data, again)) return data;
+            data = again;
+        }
+        throw new IOException("File is still changing");
+    }
+
+    private static void reload(File file) throws InterruptedException {
+        Properties properties = new Properties();
+        try (InputStream in = new ByteArrayInputStream(readSettled(file))) {
+            properties.load(in);
+            // Every mod properties file has it, if it's missing the file is truncated or half written
+            if (!properties.containsKey("classname"))
+                throw new IOException("classname is missing, file looks incomplete");
+            load(properties);
+            TimerFix.logInfo("Reloaded " + file + ", patch selection changes need a restart");
+        } catch (IOException | RuntimeException e) {
+            TimerFix.logException("Error reloading " + file + ", keeping previous config", e);
+        }
+    }
+
+    /**
+     * Starts a daemon thread that reloads the config whenever the file changes
+     */
+    static synchronized void watch(File file) {
+        if (watcher != null) return;
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        Path name = file.toPath().getFileName();
+        try {
+            WatchService service = dir.getFileSystem().newWatchService();
+            dir.register(service, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            watcher = new Thread(() -> {
+                try {
+                    while (true) {
+                        WatchKey key = service.take();
+                        boolean changed = false;
+                        for (WatchEvent<?> event : key.pollEvents())
+                            if (name.equals(event.context())) changed = true;
+                        key.reset();
+                        if (!changed) continue;
+                        // Wait for the burst of events from a save to end before reading the file
+                        WatchKey more;
+                        while ((more = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                            more.pollEvents();
+                            more.reset();
+                        }
+                        reload(file);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }, "TimerFix config watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            TimerFix.logException("Unable to watch " + file + " for changes", e);
+        }
+    }
+}
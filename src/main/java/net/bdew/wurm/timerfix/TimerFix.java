@@ -1,34 +1,41 @@
 package net.bdew.wurm.timerfix;
 
-import javassist.CannotCompileException;
-import javassist.ClassPool;
-import javassist.NotFoundException;
-import javassist.expr.ExprEditor;
 import javassist.expr.MethodCall;
 import org.gotti.wurmunlimited.modloader.classhooks.HookManager;
 import org.gotti.wurmunlimited.modloader.interfaces.*;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-public class TimerFix implements WurmMod, Initable, PreInitable, ServerStartedListener, Configurable {
+public class TimerFix implements WurmMod, Initable, PreInitable, ServerStartedListener, ServerPollListener, Configurable {
     private static final Logger logger = Logger.getLogger("TimerFix");
 
     enum Patches {
-        FLATTEN, SPELLS, DESTROY, PRAY, SACRIFICE, SOW, MEDITATE, ALCHEMY, IMPROVE, FORAGE, BREED, MISC
+        FLATTEN, SPELLS, DESTROY, PRAY, SACRIFICE, SOW, MEDITATE, ALCHEMY, IMPROVE, FORAGE, BREED, MISC, TICKS
     }
 
     static EnumSet<Patches> enabledPatches = EnumSet.noneOf(Patches.class);
 
-    static Set<String> spellBlacklist = new HashSet<>();
-    static int minSpellTimer = 2;
-    static int minPickTimer = 0;
-    static int minBreedTimer = 0;
+    static boolean watchConfig = true;
+    private static TimerConfig appliedConfig;
+
+    static List<String> tickGates = new ArrayList<>();
+
+    static boolean usePatchCache = true;
+    static boolean prescan = true;
+
+    static boolean lazyPatching = false;
+    static List<String> lazyClasses = new ArrayList<>();
+
+    private static final long STATS_LOG_INTERVAL = 10L * 60 * 1_000_000_000L;
+    private static long nextStatsLog = 0;
+    private static PatchCache patchCache;
 
     public static void logException(String msg, Throwable e) {
         if (logger != null)
@@ -60,317 +67,564 @@ public class TimerFix implements WurmMod, Initable, PreInitable, ServerStartedLi
         }
         logInfo("Enabled Patches: " + String.join(",", enabledPatches.stream().map(Enum::name).collect(Collectors.toList())));
 
-        String spells = properties.getProperty("spellBlacklist", "").trim();
-        if (spells.indexOf(",") > 0) {
-            for (String name : spells.split(","))
-                spellBlacklist.add(sanitizeSpellName(name));
-        } else if (spells.length() > 0) {
-            spellBlacklist.add(sanitizeSpellName(spells));
+        TimerConfig.load(properties);
+
+        watchConfig = Boolean.parseBoolean(properties.getProperty("watchConfig", "true"));
+        logInfo("watchConfig: " + watchConfig);
+
+        for (String target : properties.getProperty("tickGates", "").split(",")) {
+            if (!target.trim().isEmpty())
+                tickGates.add(target.trim());
+        }
+        logInfo("tickGates: " + tickGates);
+
+        if (Boolean.parseBoolean(properties.getProperty("loadGovernor", "false"))) {
+            float budget = Float.parseFloat(properties.getProperty("governorTickBudget", "100"));
+            float recover = Float.parseFloat(properties.getProperty("governorRecoverRatio", "0.8"));
+            float floor = Float.parseFloat(properties.getProperty("governorFloor", "1"));
+            float ceiling = Float.parseFloat(properties.getProperty("governorCeiling", String.valueOf(Float.MAX_VALUE)));
+            ActionTimer.governor = new LoadGovernor(budget, recover, floor, ceiling);
+            logInfo(String.format("loadGovernor: budget=%.1fms recoverRatio=%.2f floor=%.2f ceiling=%.2f", budget, recover, floor, ceiling));
+        } else {
+            logInfo("loadGovernor: disabled");
+        }
+
+        float rateLimit = Float.parseFloat(properties.getProperty("playerRateLimit", "0"));
+        if (rateLimit > 0) {
+            float burst = Float.parseFloat(properties.getProperty("playerRateBurst", String.valueOf(rateLimit)));
+            TimerHooks.rateLimiter = new ActionRateLimiter(rateLimit, burst);
+            logInfo(String.format("playerRateLimit: %.1f actions/minute, burst %.1f", rateLimit, burst));
+        } else {
+            logInfo("playerRateLimit: disabled");
+        }
+
+        if (Boolean.parseBoolean(properties.getProperty("improveCache", "false"))) {
+            int size = Integer.parseInt(properties.getProperty("improveCacheSize", "1024"));
+            float ttl = Float.parseFloat(properties.getProperty("improveCacheTtl", "10"));
+            float qlBucket = Float.parseFloat(properties.getProperty("improveCacheQlBucket", "1"));
+            TimerHooks.improveCache = new ImproveCache(size, (long) (ttl * 1e9), qlBucket);
+            logInfo(String.format("improveCache: size=%d ttl=%.1fs qlBucket=%.1f", size, ttl, qlBucket));
+        } else {
+            logInfo("improveCache: disabled");
         }
-        logInfo("Spell blacklist: " + String.join(",", spellBlacklist));
 
-        minSpellTimer = Integer.parseInt(properties.getProperty("minSpellTimer", "2"));
-        logInfo("minSpellTimer: " + minSpellTimer);
+        if (Boolean.parseBoolean(properties.getProperty("coalesceActionControl", "false"))) {
+            int interval = Integer.parseInt(properties.getProperty("actionControlMinInterval", "0"));
+            TimerHooks.actionControlCoalescer = new ActionControlCoalescer(interval * 1_000_000L);
+            logInfo(String.format("coalesceActionControl: enabled, min interval %dms", interval));
+        } else {
+            logInfo("coalesceActionControl: disabled");
+        }
+
+        if (Boolean.parseBoolean(properties.getProperty("coalesceTerrainUpdates", "false"))) {
+            int area = Integer.parseInt(properties.getProperty("terrainUpdateArea", "16"));
+            TimerHooks.terrainUpdateCoalescer = new TerrainUpdateCoalescer(area);
+            logInfo(String.format("coalesceTerrainUpdates: enabled, area %d tiles", area));
+        } else {
+            logInfo("coalesceTerrainUpdates: disabled");
+        }
+
+        TimerMetrics.enabled = Boolean.parseBoolean(properties.getProperty("metrics", "false"));
+        TimerMetrics.dumpInterval = Integer.parseInt(properties.getProperty("metricsDumpInterval", "60"));
+        logInfo("metrics: " + (TimerMetrics.enabled ? "enabled, dump interval " + TimerMetrics.dumpInterval + "s" : "disabled"));
+
+        TimerTrace.enabled = Boolean.parseBoolean(properties.getProperty("trace", "false"));
+        TimerTrace.bufferSize = Integer.parseInt(properties.getProperty("traceBufferSize", "65536"));
+        TimerTrace.fileSize = Integer.parseInt(properties.getProperty("traceFileSize", "1048576"));
+        logInfo("trace: " + (TimerTrace.enabled ? String.format("enabled, buffer %d, file %d records", TimerTrace.bufferSize, TimerTrace.fileSize) : "disabled"));
+
+        usePatchCache = Boolean.parseBoolean(properties.getProperty("patchCache", "true"));
+        logInfo("patchCache: " + usePatchCache);
 
-        minPickTimer = Integer.parseInt(properties.getProperty("minPickTimer", "0"));
-        logInfo("minPickTimer: " + (minPickTimer > 0 ? minPickTimer : "disabled"));
+        prescan = Boolean.parseBoolean(properties.getProperty("patchPrescan", "true"));
+        logInfo("patchPrescan: " + prescan);
 
-        minBreedTimer = Integer.parseInt(properties.getProperty("minBreedTimer", "0"));
-        logInfo("minBreedTimer: " + (minBreedTimer > 0 ? minBreedTimer : "disabled"));
+        lazyPatching = Boolean.parseBoolean(properties.getProperty("lazyPatching", "false"));
+        for (String cls : properties.getProperty("lazyClasses", "com.wurmonline.server.players.Cults, com.wurmonline.server.behaviours.MethodsCreatures").split(",")) {
+            if (!cls.trim().isEmpty())
+                lazyClasses.add(cls.trim());
+        }
+        logInfo("lazyPatching: " + (lazyPatching ? lazyClasses : "disabled"));
     }
 
-    private static void applyEdit(ClassPool cp, String cls, String method, String descr, boolean sendActionControlPatch, boolean setTimeLeftPatch, boolean getCounterAsFloatPatch) throws NotFoundException, CannotCompileException {
-        applyEdit(cp, cls, method, descr, sendActionControlPatch, setTimeLeftPatch, getCounterAsFloatPatch, 0);
+    /**
+     * @return description of all config values that change the generated bytecode
+     */
+    private static String configKey() {
+        return String.format("patches=%s tickGates=%s metrics=%b trace=%b improveCache=%b governor=%b coalesce=%b/%b", enabledPatches, tickGates, TimerMetrics.enabled, TimerTrace.enabled, TimerHooks.improveCache != null, ActionTimer.governor != null,
+                TimerHooks.actionControlCoalescer != null, TimerHooks.terrainUpdateCoalescer != null);
     }
 
+    private static void applyEdit(PatchRegistry registry, Patches patch, String cls, String method, String descr, boolean sendActionControlPatch, boolean setTimeLeftPatch, boolean getCounterAsFloatPatch) {
+        applyEdit(registry, patch, cls, method, descr, sendActionControlPatch, setTimeLeftPatch, getCounterAsFloatPatch, "0");
+    }
 
-    private static void applyEdit(ClassPool cp, String cls, String method, String descr, boolean sendActionControlPatch, boolean setTimeLeftPatch, boolean getCounterAsFloatPatch, int minCap) throws NotFoundException, CannotCompileException {
-        cp.getCtClass(cls).getMethod(method, descr).instrument(new ExprEditor() {
-            @Override
-            public void edit(MethodCall m) throws CannotCompileException {
-                if (sendActionControlPatch && m.getMethodName().equals("sendActionControl")) {
-                    m.replace("$proceed($1,$2,java.lang.Math.max((int)($3/com.wurmonline.server.Servers.localServer.getActionTimer()), " + minCap + "));");
-                    logInfo("Applied timer fix to sendActionControl in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
-                } else if (setTimeLeftPatch && m.getMethodName().equals("setTimeLeft")) {
-                    m.replace("$proceed(java.lang.Math.max((int)($1/com.wurmonline.server.Servers.localServer.getActionTimer()), " + minCap + "));");
-                    logInfo("Applied timer fix to setTimeLeft in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
-                } else if (getCounterAsFloatPatch && m.getMethodName().equals("getCounterAsFloat")) {
-                    m.replace("$_ = java.lang.Math.max($proceed() * com.wurmonline.server.Servers.localServer.getActionTimer(), " + minCap + "f);");
-                    logInfo("Applied timer fix to getCounterAsFloat in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
-                }
-            }
-        });
+
+    /**
+     * @return expression for the action number in a patched method, taken from an Action parameter
+     * or a leading short/int action number parameter, -1 if neither is present
+     */
+    static String actionNumber(String descr) {
+        List<String> params = PatchRegistry.paramTypes(descr);
+        int idx = params.indexOf("Lcom/wurmonline/server/behaviours/Action;");
+        if (idx >= 0)
+            return "$" + (idx + 1) + ".getNumber()";
+        else if (!params.isEmpty() && (params.get(0).equals("S") || params.get(0).equals("I")))
+            return "$1";
+        else
+            return "-1";
+    }
+
+    /**
+     * @return expression for the performer in a patched method, taken from the first Creature parameter,
+     * null if there is none
+     */
+    static String performer(String descr) {
+        int idx = PatchRegistry.paramTypes(descr).indexOf("Lcom/wurmonline/server/creatures/Creature;");
+        return idx >= 0 ? "$" + (idx + 1) : "null";
+    }
+
+    /**
+     * @return start of the replacement for a sendActionControl call, up to the time argument.
+     * Routed through {@link ActionControlCoalescer} if it's enabled and the call is on a communicator or creature.
+     */
+    private static String sendActionControlCall(MethodCall m) {
+        if (TimerHooks.actionControlCoalescer == null)
+            return "$proceed($1,$2,";
+        if (ActionControlCoalescer.hookDescriptor(m.where().getDeclaringClass().getClassPool(), m.getClassName()) != null)
+            return "net.bdew.wurm.timerfix.TimerHooks.sendActionControl($0,$1,$2,";
+        logWarning(String.format("sendActionControl on %s in %s %s %d is not coalesced", m.getClassName(), m.where().getDeclaringClass().getName(), m.where().getMethodInfo().getName(), m.getLineNumber()));
+        return "$proceed($1,$2,";
+    }
+
+    /**
+     * @param minCap expression for the minimum timer value, evaluated on every call
+     */
+    private static void applyEdit(PatchRegistry registry, Patches patch, String cls, String method, String descr, boolean sendActionControlPatch, boolean setTimeLeftPatch, boolean getCounterAsFloatPatch, String minCap) {
+        registry.addLocal(cls, method, descr, "__timerfixAction", "int", actionNumber(descr));
+        registry.addLocal(cls, method, descr, "__timerfixPerformer", "com.wurmonline.server.creatures.Creature", performer(descr));
+        if (sendActionControlPatch) {
+            registry.addCall(patch, cls, method, descr, "sendActionControl", "timer " + minCap, (m, id) -> {
+                m.replace(sendActionControlCall(m) + TimerMetrics.wrapTimer(id, TimerTrace.wrap(patch, "__timerfixAction", "__timerfixPerformer", "$3",
+                        "net.bdew.wurm.timerfix.TimerHooks.startTimer($3, __timerfixAction, __timerfixPerformer, " + minCap + ")",
+                        "net.bdew.wurm.timerfix.TimerHooks.timerClamped($3, __timerfixAction, __timerfixPerformer, " + minCap + ")")) + ");");
+                logInfo("Applied timer fix to sendActionControl in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
+            });
+        }
+        if (setTimeLeftPatch) {
+            registry.addCall(patch, cls, method, descr, "setTimeLeft", "timer " + minCap, (m, id) -> {
+                m.replace("$proceed(" + TimerMetrics.wrapTimer(id, TimerTrace.wrap(patch, "__timerfixAction", "__timerfixPerformer", "$1",
+                        "net.bdew.wurm.timerfix.TimerHooks.scaleTimer($1, __timerfixAction, __timerfixPerformer, " + minCap + ")",
+                        "net.bdew.wurm.timerfix.TimerHooks.timerClamped($1, __timerfixAction, __timerfixPerformer, " + minCap + ")")) + ");");
+                logInfo("Applied timer fix to setTimeLeft in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
+            });
+        }
+        if (getCounterAsFloatPatch) {
+            registry.addCall(patch, cls, method, descr, "getCounterAsFloat", "timer " + minCap, (m, id) -> {
+                m.replace("{ float __timerfixCounter = $proceed(); $_ = " + TimerMetrics.wrapTimer(id, TimerTrace.wrapCounter(patch, "__timerfixAction", "__timerfixPerformer", "__timerfixCounter",
+                        "net.bdew.wurm.timerfix.TimerHooks.scaleCounter(__timerfixCounter, $0.getTimeLeft(), __timerfixAction, __timerfixPerformer, (float)(" + minCap + "))",
+                        "net.bdew.wurm.timerfix.TimerHooks.counterClamped(__timerfixCounter, $0.getTimeLeft(), __timerfixAction, __timerfixPerformer, (float)(" + minCap + "))")) + "; }");
+                logInfo("Applied timer fix to getCounterAsFloat in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
+            });
+        }
     }
 
     @Override
     public void init() {
         try {
-            ClassPool classPool = HookManager.getInstance().getClassPool();
-
-            if (enabledPatches.contains(Patches.DESTROY)) {
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsStructure",
-                        "destroyWall",
-                        "(SLcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Wall;ZF)Z",
-                        true, true, false
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsStructure",
-                        "destroyFence",
-                        "(SLcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Fence;ZF)Z",
-                        true, true, false
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsStructure",
-                        "destroyFloor",
-                        "(SLcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/IFloor;F)Z",
-                        true, true, false
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "destroyItem",
-                        "(ILcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;ZF)Z",
-                        true, true, false
-                );
-            }
+            PatchRegistry registry = initPatches();
+            if (lazyPatching)
+                LazyPatcher.defer(registry, patchCache, lazyClasses);
+            registry.apply(HookManager.getInstance().getClassPool(), patchCache);
 
-            if (enabledPatches.contains(Patches.SOW)) {
-                // SOW
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.TileDirtBehaviour",
-                        "action",
-                        "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;IIZIISF)Z",
-                        true, true, false
-                );
-            }
+            if (patchCache != null)
+                patchCache.finish(LazyPatcher.getPending());
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            if (enabledPatches.contains(Patches.PRAY)) {
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsReligion",
-                        "pray",
-                        "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;F)Z",
-                        true, true, false
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsReligion",
-                        "pray",
-                        "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;F)Z",
-                        true, true, false
-                );
-            }
+    /**
+     * @return patches applied in init, after preInit patches and other mods' early changes are done
+     */
+    static PatchRegistry initPatches() {
+        PatchRegistry registry = new PatchRegistry("init");
+
+        if (enabledPatches.contains(Patches.DESTROY)) {
+            applyEdit(
+                    registry,
+                    Patches.DESTROY,
+                    "com.wurmonline.server.behaviours.MethodsStructure",
+                    "destroyWall",
+                    "(SLcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Wall;ZF)Z",
+                    true, true, false
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.DESTROY,
+                    "com.wurmonline.server.behaviours.MethodsStructure",
+                    "destroyFence",
+                    "(SLcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Fence;ZF)Z",
+                    true, true, false
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.DESTROY,
+                    "com.wurmonline.server.behaviours.MethodsStructure",
+                    "destroyFloor",
+                    "(SLcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/IFloor;F)Z",
+                    true, true, false
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.DESTROY,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "destroyItem",
+                    "(ILcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;ZF)Z",
+                    true, true, false
+            );
+        }
 
-            if (enabledPatches.contains(Patches.SACRIFICE)) {
-                classPool.getCtClass("com.wurmonline.server.behaviours.MethodsReligion").getMethod("sacrifice", "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;)Z").instrument(new ExprEditor() {
-                    @Override
-                    public void edit(MethodCall m) throws CannotCompileException {
-                        if (m.getMethodName().equals("currentSecond")) {
-                            m.replace("if ($proceed()>1) $_=$proceed()*com.wurmonline.server.Servers.localServer.getActionTimer(); else $_=$proceed();");
-                            logInfo("Applied timer fix to currentSecond in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
-                        } else if (m.getMethodName().equals("sendActionControl")) {
-                            m.replace("$proceed($1,$2,(int)($3/com.wurmonline.server.Servers.localServer.getActionTimer()));");
-                            logInfo("Applied timer fix to sendActionControl in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
-                        }
-                    }
-                });
-            }
+        if (enabledPatches.contains(Patches.SOW)) {
+            // SOW
+            applyEdit(
+                    registry,
+                    Patches.SOW,
+                    "com.wurmonline.server.behaviours.TileDirtBehaviour",
+                    "action",
+                    "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;IIZIISF)Z",
+                    true, true, false
+            );
+        }
 
-            if (enabledPatches.contains(Patches.MEDITATE)) {
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.players.Cults",
-                        "meditate",
-                        "(Lcom/wurmonline/server/creatures/Creature;ILcom/wurmonline/server/behaviours/Action;FLcom/wurmonline/server/items/Item;)Z",
-                        true, true, false
-                );
-            }
+        if (enabledPatches.contains(Patches.PRAY)) {
+            applyEdit(
+                    registry,
+                    Patches.PRAY,
+                    "com.wurmonline.server.behaviours.MethodsReligion",
+                    "pray",
+                    "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;F)Z",
+                    true, true, false
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.PRAY,
+                    "com.wurmonline.server.behaviours.MethodsReligion",
+                    "pray",
+                    "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;F)Z",
+                    true, true, false
+            );
+        }
 
-            if (enabledPatches.contains(Patches.ALCHEMY)) {
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "smear",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;F)Z",
-                        false, true, false
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "createOil",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;F)Z",
-                        false, true, false
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "createSalve",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;F)Z",
-                        false, true, false
-                );
-            }
+        if (enabledPatches.contains(Patches.SACRIFICE)) {
+            String sacrifice = "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;)Z";
+            registry.addLocal("com.wurmonline.server.behaviours.MethodsReligion", "sacrifice", sacrifice, "__timerfixAction", "int", actionNumber(sacrifice));
+            registry.addLocal("com.wurmonline.server.behaviours.MethodsReligion", "sacrifice", sacrifice, "__timerfixPerformer", "com.wurmonline.server.creatures.Creature", performer(sacrifice));
+            registry.addCall(Patches.SACRIFICE, "com.wurmonline.server.behaviours.MethodsReligion", "sacrifice", sacrifice, "currentSecond", "sacrifice", (m, id) -> {
+                m.replace("{ int __timerfixSecond = $proceed(); $_ = " + TimerMetrics.wrapTimer(id, TimerTrace.wrap(Patches.SACRIFICE, "__timerfixAction", "__timerfixPerformer", "__timerfixSecond",
+                        "net.bdew.wurm.timerfix.TimerHooks.scaleSecond(__timerfixSecond, $0.getTimeLeft(), __timerfixAction, __timerfixPerformer)",
+                        "net.bdew.wurm.timerfix.TimerHooks.counterClamped((float) __timerfixSecond, $0.getTimeLeft(), __timerfixAction, __timerfixPerformer, 0f)")) + "; }");
+                logInfo("Applied timer fix to currentSecond in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
+            });
+            registry.addLocal("com.wurmonline.server.behaviours.MethodsReligion", "sacrifice", sacrifice, "__timerfixAct", "com.wurmonline.server.behaviours.Action", "$1");
+            registry.addCall(Patches.SACRIFICE, "com.wurmonline.server.behaviours.MethodsReligion", "sacrifice", sacrifice, "sendActionControl", "sacrifice", (m, id) -> {
+                // Keep the unscaled time in the action so scaleSecond can match the clamped progress bar
+                m.replace("{ if (__timerfixAct.getTimeLeft() <= 0) __timerfixAct.setTimeLeft($3); " + sendActionControlCall(m) + TimerMetrics.wrapTimer(id, TimerTrace.wrap(Patches.SACRIFICE, "__timerfixAction", "__timerfixPerformer", "$3",
+                        "net.bdew.wurm.timerfix.TimerHooks.startTimer($3, __timerfixAction, __timerfixPerformer, 0)",
+                        "net.bdew.wurm.timerfix.TimerHooks.timerClamped($3, __timerfixAction, __timerfixPerformer, 0)")) + "); }");
+                logInfo("Applied timer fix to sendActionControl in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
+            });
+        }
+
+        if (enabledPatches.contains(Patches.MEDITATE)) {
+            applyEdit(
+                    registry,
+                    Patches.MEDITATE,
+                    "com.wurmonline.server.players.Cults",
+                    "meditate",
+                    "(Lcom/wurmonline/server/creatures/Creature;ILcom/wurmonline/server/behaviours/Action;FLcom/wurmonline/server/items/Item;)Z",
+                    true, true, false
+            );
+        }
 
-            if (enabledPatches.contains(Patches.IMPROVE)) {
-                classPool.getCtClass("com.wurmonline.server.behaviours.Actions").getMethod("getImproveActionTime", "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;)I").instrument(new ExprEditor() {
-                    @Override
-                    public void edit(MethodCall m) throws CannotCompileException {
-                        if (m.getMethodName().equals("max")) {
-                            m.replace("if ($1 == 50.0) $_=$2; else $_=$proceed($1,$2);");
-                            logInfo("Removed hard speed cap for enchanted tools in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
-                        }
-                    }
+        if (enabledPatches.contains(Patches.ALCHEMY)) {
+            applyEdit(
+                    registry,
+                    Patches.ALCHEMY,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "smear",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;F)Z",
+                    false, true, false
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.ALCHEMY,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "createOil",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;F)Z",
+                    false, true, false
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.ALCHEMY,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "createSalve",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;F)Z",
+                    false, true, false
+            );
+        }
+
+        if (enabledPatches.contains(Patches.IMPROVE)) {
+            registry.addCall(Patches.IMPROVE, "com.wurmonline.server.behaviours.Actions", "getImproveActionTime", "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;)I", "max", "improve", (m, id) -> {
+                m.replace("$_ = ($r) net.bdew.wurm.timerfix.TimerHooks.improveTime((double) $1, (double) $2);");
+                logInfo("Removed hard speed cap for enchanted tools in " + m.where().getDeclaringClass().getName() + " " + m.where().getMethodInfo().getName() + " " + m.getLineNumber());
+            });
+            if (TimerHooks.improveCache != null) {
+                registry.addMethod(Patches.IMPROVE, "com.wurmonline.server.behaviours.Actions", "getImproveActionTime", "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;)I", "improveCache", (ctClass, method, id) -> {
+                    // insertAfter first, so the early return of cached values doesn't store them again
+                    method.insertAfter("return net.bdew.wurm.timerfix.TimerHooks.storeImproveTime($1, $2, $_);");
+                    method.insertBefore("{ int __timerfixCached = net.bdew.wurm.timerfix.TimerHooks.cachedImproveTime($1, $2); if (__timerfixCached >= 0) return __timerfixCached; }");
                 });
             }
+        }
 
-            if (enabledPatches.contains(Patches.MISC)) {
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsStructure",
-                        "colorWall",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Wall;Lcom/wurmonline/server/behaviours/Action;)Z",
-                        true, false, true
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsStructure",
-                        "removeColor",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Wall;Lcom/wurmonline/server/behaviours/Action;)Z",
-                        true, false, true
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsStructure",
-                        "colorFence",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Fence;Lcom/wurmonline/server/behaviours/Action;)Z",
-                        true, false, true
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsStructure",
-                        "colorFence",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Fence;Lcom/wurmonline/server/behaviours/Action;)Z",
-                        true, false, true
-                );
-
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "colorItem",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;Z)Z",
-                        true, true, false
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "improveColor",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;)Z",
-                        true, true, false
-                );
-
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "removeColor",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;Z)Z",
-                        true, true, false
-                );
-
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "string",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;)Z",
-                        true, true, false
-                );
-
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "stringRod",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;)Z",
-                        true, true, false
-                );
-
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsItems",
-                        "unstringBow",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;F)Z",
-                        true, true, false
-                );
-            }
+        if (enabledPatches.contains(Patches.MISC)) {
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsStructure",
+                    "colorWall",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Wall;Lcom/wurmonline/server/behaviours/Action;)Z",
+                    true, false, true
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsStructure",
+                    "removeColor",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Wall;Lcom/wurmonline/server/behaviours/Action;)Z",
+                    true, false, true
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsStructure",
+                    "colorFence",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/structures/Fence;Lcom/wurmonline/server/behaviours/Action;)Z",
+                    true, false, true
+            );
+
+
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "colorItem",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;Z)Z",
+                    true, true, false
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "improveColor",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;)Z",
+                    true, true, false
+            );
+
+
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "removeColor",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;Z)Z",
+                    true, true, false
+            );
+
+
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "string",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;)Z",
+                    true, true, false
+            );
+
+
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "stringRod",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;)Z",
+                    true, true, false
+            );
+
+            applyEdit(
+                    registry,
+                    Patches.MISC,
+                    "com.wurmonline.server.behaviours.MethodsItems",
+                    "unstringBow",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/items/Item;Lcom/wurmonline/server/behaviours/Action;F)Z",
+                    true, true, false
+            );
+        }
 
-            if (enabledPatches.contains(Patches.FORAGE)) {
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.TileBehaviour",
-                        "forage",
-                        "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;IIIBF)Z",
-                        true, true, false
-                );
-            }
+        if (enabledPatches.contains(Patches.FORAGE)) {
+            applyEdit(
+                    registry,
+                    Patches.FORAGE,
+                    "com.wurmonline.server.behaviours.TileBehaviour",
+                    "forage",
+                    "(Lcom/wurmonline/server/behaviours/Action;Lcom/wurmonline/server/creatures/Creature;IIIBF)Z",
+                    true, true, false
+            );
+        }
 
-            if (enabledPatches.contains(Patches.SPELLS)) {
-                classPool.getCtClass("com.wurmonline.server.spells.Spell").getMethod("getCastingTime", "(Lcom/wurmonline/server/creatures/Creature;)I").insertAfter(
-                        "return net.bdew.wurm.timerfix.TimerHooks.getCastingTime(this, $_);"
-                );
-            }
+        if (enabledPatches.contains(Patches.SPELLS)) {
+            registry.addMethod(Patches.SPELLS, "com.wurmonline.server.spells.Spell", "getCastingTime", "(Lcom/wurmonline/server/creatures/Creature;)I", "spells", (ctClass, method, id) -> method.insertAfter(
+                    "return " + TimerMetrics.wrapTimer(id, TimerTrace.wrap(Patches.SPELLS, "this.number", "$1", "$_",
+                            "net.bdew.wurm.timerfix.TimerHooks.getCastingTime(this, $_)", "net.bdew.wurm.timerfix.TimerHooks.castingTimeClamped(this, $_)")) + ";"
+            ));
+        }
 
-            if (minPickTimer > 0) {
-                classPool.getCtClass("com.wurmonline.server.behaviours.Actions").getMethod("getPickActionTime", "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/skills/Skill;Lcom/wurmonline/server/items/Item;D)I").insertAfter(
-                        "return Math.max($_, " + minPickTimer + "*10);"
-                );
-            }
+        if (enabledPatches.contains(Patches.TICKS)) {
+            TickGatePatcher.register(registry, tickGates);
+        }
 
-        } catch (Throwable e) {
-            throw new RuntimeException(e);
+        if (enabledPatches.contains(Patches.MISC)) {
+            // Installed even while minPickTimer is 0 (a no-op) so it can be changed without a restart
+            registry.addMethod(Patches.MISC, "com.wurmonline.server.behaviours.Actions", "getPickActionTime", "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/skills/Skill;Lcom/wurmonline/server/items/Item;D)I", "pick", (ctClass, method, id) -> method.insertAfter(
+                    "return " + TimerMetrics.wrapTimer(id, TimerTrace.wrap(Patches.MISC, "-1", "$1", "$_",
+                            "net.bdew.wurm.timerfix.TimerHooks.pickTime($_)", "$_ < net.bdew.wurm.timerfix.TimerConfig.get().minPickTimer * 10")) + ";"
+            ));
         }
+
+        return registry;
     }
 
     @Override
     public void preInit() {
         try {
-            ClassPool classPool = HookManager.getInstance().getClassPool();
+            if (usePatchCache)
+                patchCache = PatchCache.open(new File("mods/timerfix/cache"), configKey());
 
-            if (enabledPatches.contains(Patches.FLATTEN)) {
-                FlattenPatcher.patchFlatten(classPool);
-            }
-
-            if (enabledPatches.contains(Patches.BREED)) {
-                applyEdit(
-                        classPool,
-                        "com.wurmonline.server.behaviours.MethodsCreatures",
-                        "breed",
-                        "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/creatures/Creature;SLcom/wurmonline/server/behaviours/Action;F)Z",
-                        true, true, false, minBreedTimer * 10
-                );
-            }
+            PatchRegistry registry = preInitPatches();
+            if (lazyPatching)
+                LazyPatcher.defer(registry, patchCache, lazyClasses);
+            registry.apply(HookManager.getInstance().getClassPool(), patchCache);
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @return patches applied in preInit, before any server classes are loaded
+     */
+    static PatchRegistry preInitPatches() {
+        PatchRegistry registry = new PatchRegistry("preInit");
+
+        if (enabledPatches.contains(Patches.FLATTEN)) {
+            FlattenPatcher.register(registry);
+        }
+
+        if (ActionTimer.governor != null) {
+            registry.addMethod(Patches.MISC, "com.wurmonline.server.Server", "run", "()V", "governor", (ctClass, method, id) -> {
+                method.insertBefore("net.bdew.wurm.timerfix.TimerHooks.tickStarted();");
+                method.insertAfter("net.bdew.wurm.timerfix.TimerHooks.tickEnded();", true);
+            });
+        }
+
+        if (TimerHooks.actionControlCoalescer != null) {
+            registry.addMethod(Patches.MISC, ActionControlCoalescer.COMMUNICATOR, "sendActionControl", "(Ljava/lang/String;ZI)V", "coalesce", (ctClass, method, id) ->
+                    method.insertBefore("net.bdew.wurm.timerfix.TimerHooks.actionControlSent(this);"));
+        }
+
+        if (enabledPatches.contains(Patches.BREED)) {
+            applyEdit(
+                    registry,
+                    Patches.BREED,
+                    "com.wurmonline.server.behaviours.MethodsCreatures",
+                    "breed",
+                    "(Lcom/wurmonline/server/creatures/Creature;Lcom/wurmonline/server/creatures/Creature;SLcom/wurmonline/server/behaviours/Action;F)Z",
+                    true, true, false, "net.bdew.wurm.timerfix.TimerConfig.get().minBreedTimer * 10"
+            );
+        }
+
+        return registry;
+    }
+
     @Override
     public void onServerStarted() {
+        ActionTimer.refresh();
+        appliedConfig = TimerConfig.get();
+        timerChanged();
+        if (watchConfig)
+            TimerConfig.watch(new File("mods/timerfix.properties"));
+        if (TimerMetrics.enabled)
+            TimerMetrics.start();
+        if (TimerTrace.enabled)
+            TimerTrace.start();
+    }
+
+    @Override
+    public void onServerPoll() {
+        if (TimerHooks.actionControlCoalescer != null)
+            TimerHooks.actionControlCoalescer.flush();
+        if (TimerHooks.terrainUpdateCoalescer != null)
+            TimerHooks.terrainUpdateCoalescer.flush();
+        // Per-action and zone multipliers are governed too, so a new scale needs a rebuild even if the global value is the same
+        boolean governorChanged = ActionTimer.governor != null && ActionTimer.governor.sample(System.nanoTime());
+        if (ActionTimer.refresh() || governorChanged || appliedConfig != TimerConfig.get()) {
+            appliedConfig = TimerConfig.get();
+            timerChanged();
+        }
+        if (System.nanoTime() - nextStatsLog > 0) {
+            if (nextStatsLog != 0)
+                logStats();
+            nextStatsLog = System.nanoTime() + STATS_LOG_INTERVAL;
+        }
+    }
+
+    private static void logStats() {
+        if (TimerHooks.improveCache != null) {
+            long hits = TimerHooks.improveCache.getHits(), misses = TimerHooks.improveCache.getMisses();
+            logInfo(String.format("Improve cache: %d hits, %d misses (%.1f%% hit rate)", hits, misses, hits + misses > 0 ? 100.0 * hits / (hits + misses) : 0));
+        }
+        if (TimerHooks.actionControlCoalescer != null) {
+            long sent = TimerHooks.actionControlCoalescer.getSent(), suppressed = TimerHooks.actionControlCoalescer.getSuppressed();
+            logInfo(String.format("Action control packets: %d sent, %d suppressed (%.1f%%), %d pending dropped after direct updates", sent, suppressed,
+                    sent + suppressed > 0 ? 100.0 * suppressed / (sent + suppressed) : 0, TimerHooks.actionControlCoalescer.getDropped()));
+        }
+        if (TimerHooks.terrainUpdateCoalescer != null) {
+            long received = TimerHooks.terrainUpdateCoalescer.getReceived(), sent = TimerHooks.terrainUpdateCoalescer.getSent();
+            logInfo(String.format("Terrain updates: %d from flatten, %d sent after merging (%d merged)", received, sent, received - sent));
+        }
+    }
+
+    /**
+     * Rebuilds precomputed tables, called on the server thread when the multiplier or config changes
+     */
+    private static void timerChanged() {
+        TimerHooks.buildActionTable();
+        TimerHooks.buildZones();
+        if (TimerHooks.improveCache != null)
+            TimerHooks.improveCache.clear();
+        if (enabledPatches.contains(Patches.FLATTEN))
+            TimerHooks.buildFlattenTable();
+        if (enabledPatches.contains(Patches.SPELLS))
+            TimerHooks.buildSpellTable();
     }
 
 }
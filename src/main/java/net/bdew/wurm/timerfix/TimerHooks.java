@@ -2,22 +2,53 @@ package net.bdew.wurm.timerfix;
 
 
 import com.wurmonline.mesh.Tiles;
-import com.wurmonline.server.Servers;
+import com.wurmonline.server.Players;
 import com.wurmonline.server.behaviours.Action;
+import com.wurmonline.server.creatures.Communicator;
+import com.wurmonline.server.creatures.Creature;
+import com.wurmonline.server.items.Item;
 import com.wurmonline.server.spells.Spell;
+import com.wurmonline.server.spells.Spells;
 
 public class TimerHooks {
+    // Pairs of (casting time factor, minimum casting time) indexed by spell number, built in onServerStarted
+    private static float[] spellTimers = new float[0];
+    // Unscaled flatten tick intervals indexed by tile type, second half is for level (action 150), built in onServerStarted
+    private static float[] flattenIntervals = new float[512];
+    // Triples of (multiplier, floor, ceiling) indexed by action number, built in onServerStarted.
+    // Multiplier is 0 for actions without an override, those read the global one from ActionTimer
+    private static float[] actionTimers = new float[0];
+
+    static ActionRateLimiter rateLimiter = null;
+    static ImproveCache improveCache = null;
+    static ActionControlCoalescer actionControlCoalescer = null;
+    static TerrainUpdateCoalescer terrainUpdateCoalescer = null;
+    private static TimerZones zones = null;
+
+    static void buildFlattenTable() {
+        TimerConfig config = TimerConfig.get();
+        float[] table = new float[512];
+        for (int i = 0; i < 256; i++) {
+            table[i] = config.flattenTicks;
+            table[256 + i] = config.levelTicks;
+        }
+        config.flattenTileTicks.forEach((name, ticks) -> {
+            try {
+                Tiles.Tile tile = Tiles.Tile.valueOf(name);
+                table[tile.id & 0xFF] = ticks;
+                table[256 + (tile.id & 0xFF)] = ticks;
+            } catch (IllegalArgumentException e) {
+                TimerFix.logWarning("Unknown tile type in flattenTileTicks: " + name);
+            }
+        });
+        flattenIntervals = table;
+    }
+
     static public boolean shouldFlattenTick(Action act, boolean insta, float counter, byte type, boolean first) {
         if (insta) return true;
 
-        float tickTimes = 5;
-        if (act.getNumber() == 150) {
-            tickTimes = 10;
-        }
-        if (type == Tiles.Tile.TILE_CLAY.id || type == Tiles.Tile.TILE_TAR.id || type == Tiles.Tile.TILE_PEAT.id) {
-            tickTimes = 30;
-        }
-        tickTimes = tickTimes / Servers.localServer.getActionTimer();
+        short action = act.getNumber();
+        float tickTimes = flattenIntervals[(action == 150 ? 256 : 0) | (type & 0xFF)] / multiplier(action, act.getPerformer());
 
         if (counter == 1 && first) {
             act.setNextTick(counter + tickTimes);
@@ -31,10 +62,314 @@ public class TimerHooks {
         return false;
     }
 
+    static void buildActionTable() {
+        TimerConfig config = TimerConfig.get();
+        int size = 0;
+        for (int number : config.actionTimers.keySet())
+            size = Math.max(size, number + 1);
+
+        float[] table = new float[size * 3];
+        for (int i = 0; i < size; i++) {
+            table[i * 3] = 0;
+            table[i * 3 + 1] = 0;
+            table[i * 3 + 2] = Integer.MAX_VALUE;
+        }
+        config.actionTimers.forEach((number, entry) -> {
+            table[number * 3] = ActionTimer.governed(entry.multiplier);
+            table[number * 3 + 1] = entry.floor;
+            table[number * 3 + 2] = entry.ceiling;
+        });
+
+        actionTimers = table;
+    }
+
+    /**
+     * @param action action number or -1 if unknown
+     * @return timer multiplier for the action
+     */
+    static public float multiplier(int action) {
+        float[] table = actionTimers;
+        int idx = action * 3;
+        float override = idx >= 0 && idx < table.length ? table[idx] : 0f;
+        // The global multiplier is a constant to the JIT, keep that path free of table reads where possible
+        return override > 0 ? override : ActionTimer.get();
+    }
+
+    static void buildZones() {
+        TimerConfig config = TimerConfig.get();
+        zones = TimerZones.compile(config.zones, config.zoneCellSize);
+    }
+
+    /**
+     * @return multiplier of the zone the performer is in, or the multiplier for the action
+     */
+    private static float located(int action, Creature performer) {
+        TimerZones z = zones;
+        if (z != null && performer != null) {
+            float zone = z.multiplier(performer.getTileX(), performer.getTileY());
+            if (zone > 0) return zone;
+        }
+        return multiplier(action);
+    }
+
+    /**
+     * @param action    action number or -1 if unknown
+     * @param performer performer of the action, may be null
+     * @return timer multiplier for the action, 1.0 if the performer is over the action rate limit
+     */
+    static public float multiplier(int action, Creature performer) {
+        ActionRateLimiter limiter = rateLimiter;
+        if (limiter != null && performer != null && limiter.isLimited(performer.getWurmId()))
+            return 1f;
+        return located(action, performer);
+    }
+
+    private static int scale(int time, float multiplier, int action, int minCap) {
+        float[] table = actionTimers;
+        int idx = action * 3;
+        if (idx >= 0 && idx < table.length)
+            return Math.min(Math.max((int) (time / multiplier), Math.max((int) table[idx + 1], minCap)), (int) table[idx + 2]);
+        else
+            return Math.max((int) (time / multiplier), minCap);
+    }
+
+    /**
+     * Adjusts an action time (in tenths of a second) passed to setTimeLeft or sendActionControl outside of action start
+     *
+     * @param action    action number or -1 if unknown
+     * @param performer performer of the action, may be null
+     * @param minCap    minimum time from the patch itself
+     */
+    static public int scaleTimer(int time, int action, Creature performer, int minCap) {
+        return scale(time, multiplier(action, performer), action, minCap);
+    }
+
+    /**
+     * Same as {@link #scaleTimer} but called when an action starts (sendActionControl), counts against the rate limit
+     */
+    static public int startTimer(int time, int action, Creature performer, int minCap) {
+        ActionRateLimiter limiter = rateLimiter;
+        if (limiter != null && performer != null && limiter.consume(performer.getWurmId(), System.nanoTime()))
+            return scale(time, 1f, action, minCap);
+        return scale(time, located(action, performer), action, minCap);
+    }
+
+    /**
+     * Used by {@link TimerTrace} after the timer was adjusted, repeats the multiplier lookup of {@link #scaleTimer}
+     * (which matches {@link #startTimer} once the action start was counted against the rate limit)
+     *
+     * @return true if the time was held at the action floor or ceiling or at minCap instead of being scaled
+     */
+    static public boolean timerClamped(int time, int action, Creature performer, int minCap) {
+        float multiplier = multiplier(action, performer);
+        return scale(time, multiplier, action, minCap) != (int) (time / multiplier);
+    }
+
+    /**
+     * Same as {@link #timerClamped} for {@link #scaleCounter}, and for {@link #scaleSecond} with a minCounter of 0
+     */
+    static public boolean counterClamped(float counter, int time, int action, Creature performer, float minCounter) {
+        float multiplier = multiplier(action, performer);
+        if (time > 0 && scale(time, multiplier, action, 0) != (int) (time / multiplier)) return true;
+        return counter * effective(time, multiplier, action) < minCounter;
+    }
+
+    /**
+     * Called at the start of Server.run when the load governor is enabled
+     */
+    static public void tickStarted() {
+        LoadGovernor governor = ActionTimer.governor;
+        if (governor != null)
+            governor.tickStarted(System.nanoTime());
+    }
+
+    /**
+     * Called at the end of Server.run when the load governor is enabled
+     */
+    static public void tickEnded() {
+        LoadGovernor governor = ActionTimer.governor;
+        if (governor != null)
+            governor.tickEnded(System.nanoTime());
+    }
+
+    /**
+     * Replaces Communicator.sendActionControl calls in patched methods when coalescing is enabled
+     */
+    static public void sendActionControl(Communicator comm, String action, boolean start, int time) {
+        ActionControlCoalescer coalescer = actionControlCoalescer;
+        if (coalescer != null)
+            coalescer.send(comm, null, action, start, time);
+        else
+            comm.sendActionControl(action, start, time);
+    }
+
+    /**
+     * Replaces Creature.sendActionControl calls in patched methods when coalescing is enabled, only players are coalesced
+     */
+    static public void sendActionControl(Creature creature, String action, boolean start, int time) {
+        ActionControlCoalescer coalescer = actionControlCoalescer;
+        if (coalescer != null && creature.isPlayer() && creature.getCommunicator() != null)
+            coalescer.send(creature.getCommunicator(), creature, action, start, time);
+        else
+            creature.sendActionControl(action, start, time);
+    }
+
+    /**
+     * Called at the start of Communicator.sendActionControl when coalescing is enabled
+     */
+    static public void actionControlSent(Communicator comm) {
+        ActionControlCoalescer coalescer = actionControlCoalescer;
+        if (coalescer != null)
+            coalescer.sentDirectly(comm);
+    }
+
+    /**
+     * Replaces Players.sendChangedTiles calls in Flattening.flatten when coalescing is enabled
+     */
+    static public void sendChangedTiles(int x, int y, int sizeX, int sizeY, boolean surfaced, boolean destroyTrees) {
+        TerrainUpdateCoalescer coalescer = terrainUpdateCoalescer;
+        if (coalescer != null)
+            coalescer.changed(x, y, sizeX, sizeY, surfaced, destroyTrees);
+        else
+            Players.getInstance().sendChangedTiles(x, y, sizeX, sizeY, surfaced, destroyTrees);
+    }
+
+    /**
+     * @param time unscaled action time (in tenths of a second), 0 if unknown
+     * @return multiplier that makes the action finish after the clamped time shown by {@link #startTimer}
+     */
+    private static float effective(int time, float multiplier, int action) {
+        if (time <= 0) return multiplier;
+        int scaled = scale(time, multiplier, action, 0);
+        return scaled > 0 ? (float) time / scaled : multiplier;
+    }
+
+    /**
+     * Adjusts the action counter (in seconds) returned by getCounterAsFloat
+     *
+     * @param time       unscaled action time from Action.getTimeLeft, 0 if unknown
+     * @param action     action number or -1 if unknown
+     * @param performer  performer of the action, may be null
+     * @param minCounter minimum counter value from the patch itself
+     */
+    static public float scaleCounter(float counter, int time, int action, Creature performer, float minCounter) {
+        return Math.max(counter * effective(time, multiplier(action, performer), action), minCounter);
+    }
+
+    /**
+     * Replaces act.currentSecond() in MethodsReligion.sacrifice, which compares it against fixed second counts.
+     * The first second is left alone since the action is set up on it.
+     *
+     * @param time      unscaled action time from Action.getTimeLeft, 0 if unknown
+     * @param action    action number or -1 if unknown
+     * @param performer performer of the action, may be null
+     */
+    static public int scaleSecond(int second, int time, int action, Creature performer) {
+        return second > 1 ? (int) (second * effective(time, multiplier(action, performer), action)) : second;
+    }
+
+    /**
+     * Replaces Math.max(cap, time) in Actions.getImproveActionTime, removing the hard 5 second cap for enchanted tools
+     */
+    static public double improveTime(double cap, double time) {
+        return cap == 50.0 ? time : Math.max(cap, time);
+    }
+
+    /**
+     * Called at the start of Actions.getImproveActionTime when the improve cache is enabled
+     *
+     * @return cached result or -1 if it needs to be computed
+     */
+    static public int cachedImproveTime(Creature performer, Item source) {
+        ImproveCache cache = improveCache;
+        if (cache == null || performer == null || source == null) return -1;
+        return cache.get(performer.getWurmId(), source.getWurmId(), source.getCurrentQualityLevel(), System.nanoTime());
+    }
+
+    /**
+     * Called at the end of Actions.getImproveActionTime when the improve cache is enabled
+     */
+    static public int storeImproveTime(Creature performer, Item source, int time) {
+        ImproveCache cache = improveCache;
+        if (cache != null && performer != null && source != null)
+            cache.put(performer.getWurmId(), source.getWurmId(), source.getCurrentQualityLevel(), time, System.nanoTime());
+        return time;
+    }
+
+    /**
+     * Applies minPickTimer to the result of Actions.getPickActionTime
+     */
+    static public int pickTime(int time) {
+        return Math.max(time, TimerConfig.get().minPickTimer * 10);
+    }
+
+    /**
+     * Replaces "act.currentSecond() % interval" in methods patched by {@link TickGatePatcher}.
+     * Opens on the second in which the counter crosses a multiple of the scaled interval, the same way the unscaled
+     * check is true on multiples of the interval, so several gates in one method don't need any shared state.
+     *
+     * @return 0 if the gated code should run on this tick
+     */
+    static public int tickGate(Action act, int interval) {
+        float scaled = interval / multiplier(act.getNumber(), act.getPerformer());
+        int second = act.currentSecond();
+        return Math.floor(second / scaled) != Math.floor((second - 1) / scaled) ? 0 : 1;
+    }
+
+    static void buildSpellTable() {
+        TimerConfig config = TimerConfig.get();
+        Spell[] spells = Spells.getAllSpells();
+        int size = 0;
+        for (Spell spell : spells)
+            size = Math.max(size, spell.number + 1);
+
+        float factor = 1f / ActionTimer.get();
+        float[] table = new float[size * 2];
+        for (int i = 0; i < size; i++) {
+            table[i * 2] = factor;
+            table[i * 2 + 1] = config.minSpellTimer;
+        }
+
+        int blacklisted = 0;
+        for (Spell spell : spells) {
+            if (spell.number >= 0 && config.spellBlacklist.contains(TimerFix.sanitizeSpellName(spell.getName()))) {
+                table[spell.number * 2] = 1f;
+                table[spell.number * 2 + 1] = 0;
+                blacklisted++;
+            }
+        }
+
+        spellTimers = table;
+        TimerFix.logInfo(String.format("Built spell timer table for %d spells (%d blacklisted)", spells.length, blacklisted));
+    }
+
     static public int getCastingTime(Spell spell, int base) {
-        if (TimerFix.spellBlacklist.contains(TimerFix.sanitizeSpellName(spell.getName())))
+        float[] table = spellTimers;
+        int idx = spell.number * 2;
+        if (idx >= 0 && idx < table.length)
+            return Math.max((int) (base * table[idx]), (int) table[idx + 1]);
+
+        // Spells registered after the table was built
+        TimerConfig config = TimerConfig.get();
+        if (config.spellBlacklist.contains(TimerFix.sanitizeSpellName(spell.getName())))
             return base;
         else
-            return Math.max((int) (base / Servers.localServer.getActionTimer()), TimerFix.minSpellTimer);
+            return Math.max((int) (base / ActionTimer.get()), config.minSpellTimer);
+    }
+
+    /**
+     * Used by {@link TimerTrace}
+     *
+     * @return true if {@link #getCastingTime} returned the minimum spell timer instead of the scaled time
+     */
+    static public boolean castingTimeClamped(Spell spell, int base) {
+        float[] table = spellTimers;
+        int idx = spell.number * 2;
+        if (idx >= 0 && idx < table.length)
+            return (int) table[idx + 1] > (int) (base * table[idx]);
+
+        TimerConfig config = TimerConfig.get();
+        return !config.spellBlacklist.contains(TimerFix.sanitizeSpellName(spell.getName()))
+                && config.minSpellTimer > (int) (base / ActionTimer.get());
     }
 }
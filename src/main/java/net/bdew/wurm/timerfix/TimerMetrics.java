@@ -0,0 +1,204 @@
+package net.bdew.wurm.timerfix;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Call counts and histograms for patched methods.
+ * <p>
+ * Recording calls are only woven into patched code when metrics are enabled in config, so this class is never
+ * loaded otherwise. Timer values are recorded in the units the server uses (tenths of a second for
+ * sendActionControl/setTimeLeft, counter values are multiplied by 10).
+ */
+public class TimerMetrics implements TimerMetricsMXBean {
+    static boolean enabled = false;
+    static int dumpInterval = 60;
+
+    /**
+     * Log-linear histogram, values up to 8 are exact and each power of 2 above is split into 8 buckets
+     */
+    static class Histogram {
+        private static final int SIZE = 488;
+        private final AtomicLongArray buckets = new AtomicLongArray(SIZE);
+
+        static int bucket(long v) {
+            if (v < 8) return (int) Math.max(v, 0);
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return ((exp - 2) << 3) | (int) ((v >>> (exp - 3)) & 7);
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < 8) return bucket;
+            int exp = (bucket >> 3) + 2;
+            return (long) (8 | (bucket & 7)) << (exp - 3);
+        }
+
+        void record(long v) {
+            buckets.incrementAndGet(bucket(v));
+        }
+
+        long percentile(double p) {
+            long total = 0;
+            for (int i = 0; i < SIZE; i++)
+                total += buckets.get(i);
+            if (total == 0) return 0;
+            long threshold = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < SIZE; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold) return lowerBound(i);
+            }
+            return lowerBound(SIZE - 1);
+        }
+
+        void reset() {
+            for (int i = 0; i < SIZE; i++)
+                buckets.set(i, 0);
+        }
+    }
+
+    static class Target {
+        final String name;
+        final LongAdder calls = new LongAdder();
+        final LongAdder time = new LongAdder();
+        final Histogram timeHistogram = new Histogram();
+        final Histogram timerHistogram = new Histogram();
+
+        Target(String name) {
+            this.name = name;
+        }
+    }
+
+    private static volatile Target[] targets = new Target[0];
+
+    /**
+     * @return id to use in recording calls
+     */
+    static synchronized int register(TimerFix.Patches patch, String cls, String method) {
+        Target[] updated = Arrays.copyOf(targets, targets.length + 1);
+        updated[targets.length] = new Target(patch + " " + cls.substring(cls.lastIndexOf('.') + 1) + "." + method);
+        targets = updated;
+        return targets.length - 1;
+    }
+
+    public static void time(int id, long nanos) {
+        Target target = targets[id];
+        target.calls.increment();
+        target.time.add(nanos);
+        target.timeHistogram.record(nanos);
+    }
+
+    public static int timer(int id, int value) {
+        targets[id].timerHistogram.record(value);
+        return value;
+    }
+
+    public static float timer(int id, float value) {
+        targets[id].timerHistogram.record((long) (value * 10));
+        return value;
+    }
+
+    /**
+     * Code to time the method around which it's inserted, used by {@link PatchRegistry}
+     */
+    static String timeStart() {
+        return "__timerfixStart = System.nanoTime();";
+    }
+
+    static String timeEnd(int id) {
+        return "net.bdew.wurm.timerfix.TimerMetrics.time(" + id + ", System.nanoTime() - __timerfixStart);";
+    }
+
+    /**
+     * Wraps an injected timer expression with a recording call if metrics are enabled
+     */
+    static String wrapTimer(int id, String expr) {
+        return enabled ? "net.bdew.wurm.timerfix.TimerMetrics.timer(" + id + ", " + expr + ")" : expr;
+    }
+
+    private static Map<String, Long> collect(ToLongFunction<Target> fn) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Target target : targets)
+            result.put(target.name, fn.applyAsLong(target));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        return collect(t -> t.calls.sum());
+    }
+
+    @Override
+    public Map<String, Long> getTotalTimeNanos() {
+        return collect(t -> t.time.sum());
+    }
+
+    @Override
+    public Map<String, Long> getTimeP99Nanos() {
+        return collect(t -> t.timeHistogram.percentile(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getTimerP50() {
+        return collect(t -> t.timerHistogram.percentile(0.5));
+    }
+
+    @Override
+    public void reset() {
+        for (Target target : targets) {
+            target.calls.reset();
+            target.time.reset();
+            target.timeHistogram.reset();
+            target.timerHistogram.reset();
+        }
+    }
+
+    private static void dump(File file) {
+        boolean header = !file.exists();
+        try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            if (header)
+                out.println("timestamp,target,calls,totalTimeNs,timeP50Ns,timeP99Ns,timerP50,timerP99");
+            long now = System.currentTimeMillis();
+            for (Target target : targets) {
+                out.println(String.format("%d,%s,%d,%d,%d,%d,%d,%d", now, target.name, target.calls.sum(), target.time.sum(),
+                        target.timeHistogram.percentile(0.5), target.timeHistogram.percentile(0.99),
+                        target.timerHistogram.percentile(0.5), target.timerHistogram.percentile(0.99)));
+            }
+        } catch (IOException e) {
+            TimerFix.logException("Error writing metrics to " + file, e);
+        }
+    }
+
+    static void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new TimerMetrics(), new ObjectName("net.bdew.wurm.timerfix:type=TimerMetrics"));
+        } catch (Exception e) {
+            TimerFix.logException("Error registering metrics MBean", e);
+        }
+
+        if (dumpInterval > 0) {
+            File file = new File("mods/timerfix/metrics.csv");
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "TimerFix metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(() -> dump(file), dumpInterval, dumpInterval, TimeUnit.SECONDS);
+        }
+
+        TimerFix.logInfo(String.format("Metrics started for %d targets", targets.length));
+    }
+}
@@ -0,0 +1,15 @@
+package net.bdew.wurm.timerfix;
+
+import java.util.Map;
+
+public interface TimerMetricsMXBean {
+    Map<String, Long> getCalls();
+
+    Map<String, Long> getTotalTimeNanos();
+
+    Map<String, Long> getTimeP99Nanos();
+
+    Map<String, Long> getTimerP50();
+
+    void reset();
+}
@@ -0,0 +1,209 @@
+package net.bdew.wurm.timerfix;
+
+import com.wurmonline.server.creatures.Creature;
+import sun.misc.Unsafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Optional recorder of every timer value adjusted by patched code.
+ * <p>
+ * Records are written into a preallocated off-heap ring, writers claim slots with a single atomic increment and
+ * never allocate or block. A daemon thread copies committed records into a memory mapped ring file that can be
+ * summarized with {@link TraceReader}. If the flusher falls a whole ring behind the oldest records are dropped and
+ * counted in the file header.
+ * <p>
+ * Like {@link TimerMetrics} the recording calls are only woven into patched code when enabled in config.
+ */
+public class TimerTrace {
+    static final int MAGIC = 0x54465452;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32;
+
+    // Header layout
+    static final int H_MAGIC = 0, H_VERSION = 4, H_RECORD_SIZE = 8, H_CAPACITY = 12, H_WRITTEN = 16, H_DROPPED = 24, H_BASE_MILLIS = 32, H_BASE_NANOS = 40;
+
+    // Record layout
+    static final int R_TIME = 0, R_PERFORMER = 8, R_ACTION = 16, R_ORIGINAL = 20, R_ADJUSTED = 24, R_PATCH = 28, R_FLAGS = 30;
+
+    static final short FLAG_CAPPED = 1;
+
+    static boolean enabled = false;
+    static int bufferSize = 65536;
+    static int fileSize = 1048576;
+    static int flushInterval = 200;
+
+    private static volatile ByteBuffer buffer = null;
+    private static int mask;
+    private static final AtomicLong claim = new AtomicLong();
+    // Sequence number + 1 of the record committed in each slot, 0 while a slot is being written
+    private static AtomicLongArray published;
+
+    // The slot sequence numbers act as a seqlock around the plain buffer accesses, which need explicit fences
+    private static final Unsafe UNSAFE;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Wraps an injected timer expression (int, tenths of a second) with a recording call if tracing is enabled
+     *
+     * @param original expression for the unadjusted value, may be evaluated more than once
+     * @param capped   boolean expression, true if the adjusted value was held at a floor or ceiling rather than
+     *                 scaled. Evaluated after expr.
+     */
+    static String wrap(TimerFix.Patches patch, String action, String performer, String original, String expr, String capped) {
+        return enabled ? String.format("net.bdew.wurm.timerfix.TimerTrace.recordTimer(%d, %s, %s, (float)(%s), %s, %s)", patch.ordinal(), action, performer, original, expr, capped) : expr;
+    }
+
+    /**
+     * Same as {@link #wrap} for action counters (float, seconds)
+     */
+    static String wrapCounter(TimerFix.Patches patch, String action, String performer, String original, String expr, String capped) {
+        return enabled ? String.format("net.bdew.wurm.timerfix.TimerTrace.recordCounter(%d, %s, %s, (float)(%s), %s, %s)", patch.ordinal(), action, performer, original, expr, capped) : expr;
+    }
+
+    public static int recordTimer(int patch, int action, Creature performer, float original, int adjusted, boolean capped) {
+        write(patch, action, performer, original, adjusted, capped);
+        return adjusted;
+    }
+
+    public static float recordCounter(int patch, int action, Creature performer, float original, float adjusted, boolean capped) {
+        write(patch, action, performer, original, adjusted, capped);
+        return adjusted;
+    }
+
+    private static void write(int patch, int action, Creature performer, float original, float adjusted, boolean capped) {
+        ByteBuffer buf = buffer;
+        if (buf == null) return;
+        long seq = claim.getAndIncrement();
+        int slot = (int) (seq & mask);
+        int pos = slot * RECORD_SIZE;
+        published.set(slot, 0);
+        // Keep the record writes after the slot is marked as being written
+        UNSAFE.storeFence();
+        buf.putLong(pos + R_TIME, System.nanoTime());
+        buf.putLong(pos + R_PERFORMER, performer == null ? -1L : performer.getWurmId());
+        buf.putInt(pos + R_ACTION, action);
+        buf.putFloat(pos + R_ORIGINAL, original);
+        buf.putFloat(pos + R_ADJUSTED, adjusted);
+        buf.putShort(pos + R_PATCH, (short) patch);
+        buf.putShort(pos + R_FLAGS, capped ? FLAG_CAPPED : 0);
+        published.lazySet(slot, seq + 1);
+    }
+
+    private static class Flusher implements Runnable {
+        private final MappedByteBuffer out;
+        private final int capacity;
+        private long next = 0, written = 0, dropped = 0;
+
+        Flusher(MappedByteBuffer out, int capacity) {
+            this.out = out;
+            this.capacity = capacity;
+        }
+
+        void flush() {
+            ByteBuffer buf = buffer;
+            long end = claim.get();
+            if (end - next > mask + 1) {
+                dropped += end - next - (mask + 1);
+                next = end - (mask + 1);
+            }
+            while (next < end) {
+                int slot = (int) (next & mask);
+                long committed = published.get(slot);
+                if (committed != next + 1) {
+                    if (committed > next + 1) {
+                        // Overwritten by a writer that lapped us
+                        dropped++;
+                        next++;
+                        continue;
+                    }
+                    // Still being written, pick it up on the next pass
+                    break;
+                }
+                int src = slot * RECORD_SIZE;
+                int dst = HEADER_SIZE + (int) (written % capacity) * RECORD_SIZE;
+                out.putLong(dst + R_TIME, buf.getLong(src + R_TIME));
+                out.putLong(dst + R_PERFORMER, buf.getLong(src + R_PERFORMER));
+                out.putInt(dst + R_ACTION, buf.getInt(src + R_ACTION));
+                out.putFloat(dst + R_ORIGINAL, buf.getFloat(src + R_ORIGINAL));
+                out.putFloat(dst + R_ADJUSTED, buf.getFloat(src + R_ADJUSTED));
+                out.putShort(dst + R_PATCH, buf.getShort(src + R_PATCH));
+                out.putShort(dst + R_FLAGS, buf.getShort(src + R_FLAGS));
+                // Finish the record reads before checking that no writer took the slot meanwhile
+                UNSAFE.loadFence();
+                if (published.get(slot) != committed) {
+                    dropped++;
+                } else {
+                    written++;
+                }
+                next++;
+            }
+            out.putLong(H_WRITTEN, written);
+            out.putLong(H_DROPPED, dropped);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(flushInterval);
+                    flush();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    static void start() {
+        int size = Integer.highestOneBit(Math.max(bufferSize, 1024));
+        File file = new File("mods/timerfix/trace.bin");
+        try {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+                throw new IOException("Unable to create " + file.getParentFile());
+            MappedByteBuffer out;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long length = HEADER_SIZE + (long) fileSize * RECORD_SIZE;
+                raf.setLength(length);
+                out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            }
+            out.putInt(H_MAGIC, MAGIC);
+            out.putInt(H_VERSION, VERSION);
+            out.putInt(H_RECORD_SIZE, RECORD_SIZE);
+            out.putInt(H_CAPACITY, fileSize);
+            out.putLong(H_WRITTEN, 0);
+            out.putLong(H_DROPPED, 0);
+            out.putLong(H_BASE_MILLIS, System.currentTimeMillis());
+            out.putLong(H_BASE_NANOS, System.nanoTime());
+
+            mask = size - 1;
+            published = new AtomicLongArray(size);
+            buffer = ByteBuffer.allocateDirect(size * RECORD_SIZE);
+
+            Thread thread = new Thread(new Flusher(out, fileSize), "TimerFix trace");
+            thread.setDaemon(true);
+            thread.start();
+
+            TimerFix.logInfo(String.format("Trace started, buffer %d records, writing last %d records to %s", size, fileSize, file));
+        } catch (IOException e) {
+            TimerFix.logException("Unable to start trace, recording disabled", e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package net.bdew.wurm.timerfix;
+
+import java.util.*;
+
+/**
+ * Rectangular areas with their own timer multiplier, compiled into a coarse grid.
+ * <p>
+ * Each grid cell points to the list of zones overlapping it, highest priority first, and the first zone containing
+ * the tile wins. Zones smaller than a cell are kept and edges are exact. Cells that share the same zones share the
+ * list, so lookups are a shift, an array read and usually a single rectangle check regardless of the number of zones.
+ */
+public class TimerZones {
+    static final class Zone {
+        final int x1, y1, x2, y2;
+        final float multiplier;
+        final int priority;
+
+        Zone(int x1, int y1, int x2, int y2, float multiplier, int priority) {
+            this.x1 = Math.min(x1, x2);
+            this.y1 = Math.min(y1, y2);
+            this.x2 = Math.max(x1, x2);
+            this.y2 = Math.max(y1, y2);
+            this.multiplier = multiplier;
+            this.priority = priority;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(%d,%d)-(%d,%d) x%.2f p%d", x1, y1, x2, y2, multiplier, priority);
+        }
+    }
+
+    private final int shift, width, height;
+    private final short[] grid;
+    // Candidate zone indexes per distinct grid cell list, index 0 is the empty list
+    private final int[][] candidates;
+    // Zone bounds as x1, y1, x2, y2 per zone index
+    private final int[] bounds;
+    private final float[] multipliers;
+
+    private TimerZones(int shift, int width, int height, short[] grid, int[][] candidates, int[] bounds, float[] multipliers) {
+        this.shift = shift;
+        this.width = width;
+        this.height = height;
+        this.grid = grid;
+        this.candidates = candidates;
+        this.bounds = bounds;
+        this.multipliers = multipliers;
+    }
+
+    static Zone parse(String spec) {
+        String[] parts = spec.split(":");
+        if (parts.length < 5)
+            throw new IllegalArgumentException("Invalid timer zone: " + spec);
+        return new Zone(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()),
+                Float.parseFloat(parts[4].trim()), parts.length > 5 ? Integer.parseInt(parts[5].trim()) : 0);
+    }
+
+    /**
+     * @param cellSize grid cell size in tiles, rounded down to a power of 2
+     * @return compiled zones or null if there are none
+     */
+    static TimerZones compile(List<Zone> zones, int cellSize) {
+        if (zones.isEmpty()) return null;
+
+        int shift = 31 - Integer.numberOfLeadingZeros(Math.max(cellSize, 1));
+        int cell = 1 << shift;
+
+        int maxX = 0, maxY = 0;
+        for (Zone zone : zones) {
+            maxX = Math.max(maxX, zone.x2);
+            maxY = Math.max(maxY, zone.y2);
+        }
+        int width = (maxX >> shift) + 1;
+        int height = (maxY >> shift) + 1;
+
+        // Highest priority first, earlier zones win ties
+        List<Zone> sorted = new ArrayList<>(zones);
+        sorted.sort(Comparator.comparingInt((Zone z) -> z.priority).reversed());
+
+        int[] bounds = new int[sorted.size() * 4];
+        float[] multipliers = new float[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            Zone zone = sorted.get(i);
+            bounds[i * 4] = zone.x1;
+            bounds[i * 4 + 1] = zone.y1;
+            bounds[i * 4 + 2] = zone.x2;
+            bounds[i * 4 + 3] = zone.y2;
+            multipliers[i] = ActionTimer.governed(zone.multiplier);
+        }
+
+        // Cells get a zone appended for every zone overlapping them, lists are interned so (list, zone) -> list
+        List<int[]> lists = new ArrayList<>();
+        lists.add(new int[0]);
+        Map<Long, Integer> appended = new HashMap<>();
+        short[] grid = new short[width * height];
+        // Cells fully inside a zone, lower priority zones can't match there
+        BitSet covered = new BitSet(grid.length);
+
+        for (int i = 0; i < sorted.size(); i++) {
+            Zone zone = sorted.get(i);
+            int cx1 = Math.max(0, zone.x1 >> shift), cx2 = zone.x2 >> shift;
+            int cy1 = Math.max(0, zone.y1 >> shift), cy2 = zone.y2 >> shift;
+            for (int cy = cy1; cy <= cy2; cy++) {
+                for (int cx = cx1; cx <= cx2; cx++) {
+                    int idx = cy * width + cx;
+                    if (covered.get(idx)) continue;
+                    int list = grid[idx];
+                    Integer next = appended.get(((long) list << 32) | i);
+                    if (next == null) {
+                        int[] old = lists.get(list);
+                        int[] extended = Arrays.copyOf(old, old.length + 1);
+                        extended[old.length] = i;
+                        next = lists.size();
+                        if (next > Short.MAX_VALUE) {
+                            TimerFix.logWarning("Too many overlapping timer zones, increase zoneCellSize. Timer zones disabled.");
+                            return null;
+                        }
+                        lists.add(extended);
+                        appended.put(((long) list << 32) | i, next);
+                    }
+                    grid[idx] = (short) (int) next;
+                    if (zone.x1 <= cx << shift && zone.y1 <= cy << shift && zone.x2 >= (cx << shift) + cell - 1 && zone.y2 >= (cy << shift) + cell - 1)
+                        covered.set(idx);
+                }
+            }
+        }
+
+        return new TimerZones(shift, width, height, grid, lists.toArray(new int[0][]), bounds, multipliers);
+    }
+
+    /**
+     * @return multiplier of the zone covering the tile or 0 if there is none
+     */
+    float multiplier(int tileX, int tileY) {
+        int cx = tileX >> shift;
+        int cy = tileY >> shift;
+        if (cx < 0 || cy < 0 || cx >= width || cy >= height) return 0f;
+        for (int zone : candidates[grid[cy * width + cx]]) {
+            int b = zone * 4;
+            if (tileX >= bounds[b] && tileY >= bounds[b + 1] && tileX <= bounds[b + 2] && tileY <= bounds[b + 3])
+                return multipliers[zone];
+        }
+        return 0f;
+    }
+}
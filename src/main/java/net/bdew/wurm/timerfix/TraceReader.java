@@ -0,0 +1,102 @@
+package net.bdew.wurm.timerfix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Command line summary of a trace file written by {@link TimerTrace}
+ * <p>
+ * Usage: java -cp timerfix.jar net.bdew.wurm.timerfix.TraceReader [file] [-player wurmId]
+ */
+public class TraceReader {
+    private static class Summary {
+        long count, capped;
+        double original, adjusted;
+
+        void add(float original, float adjusted, boolean capped) {
+            this.count++;
+            this.original += original;
+            this.adjusted += adjusted;
+            if (capped) this.capped++;
+        }
+    }
+
+    private static String patchName(int patch) {
+        TimerFix.Patches[] patches = TimerFix.Patches.values();
+        return patch >= 0 && patch < patches.length ? patches[patch].name() : "#" + patch;
+    }
+
+    public static void main(String[] args) throws IOException {
+        File file = new File("mods/timerfix/trace.bin");
+        long player = Long.MIN_VALUE;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-player") && i + 1 < args.length)
+                player = Long.parseLong(args[++i]);
+            else
+                file = new File(args[i]);
+        }
+
+        MappedByteBuffer in;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+
+        if (in.getInt(TimerTrace.H_MAGIC) != TimerTrace.MAGIC || in.getInt(TimerTrace.H_VERSION) != TimerTrace.VERSION
+                || in.getInt(TimerTrace.H_RECORD_SIZE) != TimerTrace.RECORD_SIZE) {
+            System.err.println(file + " is not a timerfix trace file");
+            System.exit(1);
+        }
+
+        int capacity = in.getInt(TimerTrace.H_CAPACITY);
+        long written = in.getLong(TimerTrace.H_WRITTEN);
+        long dropped = in.getLong(TimerTrace.H_DROPPED);
+        long baseMillis = in.getLong(TimerTrace.H_BASE_MILLIS);
+        long baseNanos = in.getLong(TimerTrace.H_BASE_NANOS);
+
+        Map<String, Summary> byTarget = new TreeMap<>();
+        Map<Long, Summary> byPlayer = new HashMap<>();
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+
+        for (long i = Math.max(0, written - capacity); i < written; i++) {
+            int pos = TimerTrace.HEADER_SIZE + (int) (i % capacity) * TimerTrace.RECORD_SIZE;
+            long performer = in.getLong(pos + TimerTrace.R_PERFORMER);
+            if (player != Long.MIN_VALUE && performer != player) continue;
+            long time = in.getLong(pos + TimerTrace.R_TIME);
+            float original = in.getFloat(pos + TimerTrace.R_ORIGINAL);
+            float adjusted = in.getFloat(pos + TimerTrace.R_ADJUSTED);
+            boolean capped = (in.getShort(pos + TimerTrace.R_FLAGS) & TimerTrace.FLAG_CAPPED) != 0;
+            String target = String.format("%-10s action %4d", patchName(in.getShort(pos + TimerTrace.R_PATCH)), in.getInt(pos + TimerTrace.R_ACTION));
+            byTarget.computeIfAbsent(target, k -> new Summary()).add(original, adjusted, capped);
+            byPlayer.computeIfAbsent(performer, k -> new Summary()).add(original, adjusted, capped);
+            first = Math.min(first, time);
+            last = Math.max(last, time);
+        }
+
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        System.out.println(String.format("%s: %d records written, %d in file, %d dropped", file, written, Math.min(written, capacity), dropped));
+        if (first > last) {
+            System.out.println("No matching records");
+            return;
+        }
+        System.out.println(String.format("From %s to %s",
+                fmt.format(new Date(baseMillis + (first - baseNanos) / 1000000)),
+                fmt.format(new Date(baseMillis + (last - baseNanos) / 1000000))));
+
+        System.out.println();
+        System.out.println(String.format("%-22s %10s %10s %10s %8s %8s", "target", "count", "original", "adjusted", "ratio", "capped"));
+        byTarget.forEach((target, s) -> System.out.println(String.format("%-22s %10d %10.1f %10.1f %8.2f %8d",
+                target, s.count, s.original / s.count, s.adjusted / s.count, s.adjusted == 0 ? 0 : s.original / s.adjusted, s.capped)));
+
+        System.out.println();
+        System.out.println(String.format("%-22s %10s %10s", "performer", "count", "capped"));
+        byPlayer.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().count, a.getValue().count))
+                .limit(10)
+                .forEach(e -> System.out.println(String.format("%-22d %10d %10d", e.getKey(), e.getValue().count, e.getValue().capped)));
+    }
+}
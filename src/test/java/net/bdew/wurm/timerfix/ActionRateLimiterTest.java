@@ -0,0 +1,60 @@
+package net.bdew.wurm.timerfix;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ActionRateLimiterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void burstThenLimited() {
+        ActionRateLimiter limiter = new ActionRateLimiter(60f, 2f);
+        assertFalse(limiter.consume(1, 0));
+        assertFalse(limiter.consume(1, 0));
+        assertFalse(limiter.isLimited(1));
+        assertTrue(limiter.consume(1, 0));
+        assertTrue(limiter.isLimited(1));
+        assertFalse(limiter.isLimited(2));
+        assertFalse(limiter.consume(2, 0));
+    }
+
+    @Test
+    public void tokensRefill() {
+        ActionRateLimiter limiter = new ActionRateLimiter(60f, 2f);
+        limiter.consume(1, 0);
+        limiter.consume(1, 0);
+        assertTrue(limiter.consume(1, SECOND / 2));
+        assertFalse(limiter.consume(1, SECOND + SECOND / 10));
+        assertFalse(limiter.isLimited(1));
+        assertTrue(limiter.consume(1, SECOND + SECOND / 5));
+        // Refill stops at the burst size
+        assertFalse(limiter.consume(1, 100 * SECOND));
+        assertFalse(limiter.consume(1, 100 * SECOND));
+        assertTrue(limiter.consume(1, 100 * SECOND));
+    }
+
+    @Test
+    public void unknownCreatureIsNeverLimited() {
+        ActionRateLimiter limiter = new ActionRateLimiter(1f, 1f);
+        for (int i = 0; i < 10; i++)
+            assertFalse(limiter.consume(-1, 0));
+        assertFalse(limiter.isLimited(-1));
+    }
+
+    @Test
+    public void growsAndEvictsIdleCreatures() {
+        ActionRateLimiter limiter = new ActionRateLimiter(1f, 1f);
+        for (long id = 0; id < 1000; id++)
+            assertFalse(limiter.consume(id, 0));
+        for (long id = 0; id < 1000; id++)
+            assertTrue(limiter.consume(id, 0));
+
+        // Enough new creatures after the idle timeout to fill the map and drop the old entries
+        long later = 11 * 60 * SECOND;
+        for (long id = 1000; id < 3000; id++)
+            assertFalse(limiter.consume(id, later));
+        assertFalse(limiter.isLimited(0));
+        assertTrue(limiter.consume(1000, later));
+    }
+}
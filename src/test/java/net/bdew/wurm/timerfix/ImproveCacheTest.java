@@ -0,0 +1,67 @@
+package net.bdew.wurm.timerfix;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImproveCacheTest {
+    @Test
+    public void hitWithinBucketAndTtl() {
+        ImproveCache cache = new ImproveCache(64, 1000, 10f);
+        assertEquals(-1, cache.get(1, 2, 55f, 0));
+        cache.put(1, 2, 55f, 123, 0);
+        assertEquals(123, cache.get(1, 2, 59f, 500));
+        assertEquals(-1, cache.get(1, 2, 61f, 500));
+        assertEquals(-1, cache.get(1, 3, 55f, 500));
+        assertEquals(-1, cache.get(2, 2, 55f, 500));
+        assertEquals(-1, cache.get(1, 2, 55f, 1000));
+        assertEquals(1, cache.getHits());
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test
+    public void expiryAcrossNanoTimeOverflow() {
+        ImproveCache cache = new ImproveCache(64, 1000, 10f);
+        long now = Long.MAX_VALUE - 100;
+        cache.put(1, 2, 55f, 123, now);
+        // Expiry time wrapped to negative, lookup time not yet
+        assertEquals(123, cache.get(1, 2, 55f, now + 50));
+        assertEquals(123, cache.get(1, 2, 55f, now + 500));
+        assertEquals(-1, cache.get(1, 2, 55f, now + 1000));
+
+        now = Long.MIN_VALUE;
+        cache.put(1, 2, 55f, 124, now);
+        assertEquals(124, cache.get(1, 2, 55f, now + 999));
+    }
+
+    @Test
+    public void zeroTimestampIsValid() {
+        ImproveCache cache = new ImproveCache(64, 1000, 10f);
+        cache.put(1, 2, 55f, 0, -1000);
+        assertEquals(0, cache.get(1, 2, 55f, -1));
+        assertEquals(-1, cache.get(1, 2, 55f, 0));
+    }
+
+    @Test
+    public void replacesUnreferencedEntryWhenFull() {
+        // Single set of 4
+        ImproveCache cache = new ImproveCache(4, 1000, 10f);
+        for (int i = 0; i < 4; i++)
+            cache.put(i, 0, 0f, i, 0);
+        assertEquals(0, cache.get(0, 0, 0f, 1));
+        cache.put(4, 0, 0f, 4, 1);
+        assertEquals(0, cache.get(0, 0, 0f, 2));
+        assertEquals(-1, cache.get(1, 0, 0f, 2));
+        assertEquals(4, cache.get(4, 0, 0f, 2));
+    }
+
+    @Test
+    public void clear() {
+        ImproveCache cache = new ImproveCache(64, 1000, 10f);
+        cache.put(1, 2, 55f, 123, 0);
+        cache.clear();
+        assertEquals(-1, cache.get(1, 2, 55f, 1));
+        cache.put(1, 2, 55f, 125, 2);
+        assertEquals(125, cache.get(1, 2, 55f, 3));
+    }
+}
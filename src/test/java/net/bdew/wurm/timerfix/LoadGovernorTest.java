@@ -0,0 +1,66 @@
+package net.bdew.wurm.timerfix;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoadGovernorTest {
+    private static final long MS = 1_000_000L;
+
+    private final LoadGovernor governor = new LoadGovernor(10f, 0.5f, 1f, 10f);
+    private long now = 1_000_000_000L;
+
+    private void ticks(int count, long duration) {
+        for (int i = 0; i < count; i++) {
+            governor.tickStarted(now);
+            now += duration;
+            governor.tickEnded(now);
+            // Idle time between ticks doesn't count
+            now += 50 * MS - duration;
+        }
+    }
+
+    @Test
+    public void stepsDownAndRecoversWithHysteresis() {
+        assertFalse(governor.sample(now));
+        assertEquals(5f, governor.adjust(5f), 1e-4f);
+
+        ticks(20, 20 * MS);
+        assertTrue(governor.sample(now));
+        assertEquals(4.6f, governor.adjust(5f), 1e-4f);
+        // Only one step per window
+        ticks(1, 20 * MS);
+        assertFalse(governor.sample(now));
+
+        // Between the recovery threshold and the budget the scale holds
+        ticks(200, 7 * MS);
+        assertFalse(governor.sample(now));
+        assertEquals(4.6f, governor.adjust(5f), 1e-4f);
+
+        ticks(200, 2 * MS);
+        assertTrue(governor.sample(now));
+        assertEquals(5f, governor.adjust(5f), 1e-4f);
+        ticks(20, 2 * MS);
+        assertFalse(governor.sample(now));
+    }
+
+    @Test
+    public void backToBackTicksUnderBudget() {
+        governor.sample(now);
+        // Short ticks run back to back when catching up, only the work inside them counts
+        for (int i = 0; i < 100; i++) {
+            governor.tickStarted(now);
+            now += 3 * MS;
+            governor.tickEnded(now);
+        }
+        now += 1000 * MS;
+        assertFalse(governor.sample(now));
+        assertEquals(5f, governor.adjust(5f), 1e-4f);
+    }
+
+    @Test
+    public void clampsToFloorAndCeiling() {
+        assertEquals(10f, governor.adjust(20f), 0f);
+        assertEquals(1f, governor.adjust(0.5f), 0f);
+    }
+}
@@ -0,0 +1,76 @@
+package net.bdew.wurm.timerfix;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LongIndexMapTest {
+    @Test
+    public void addAndGet() {
+        LongIndexMap map = new LongIndexMap(8);
+        assertEquals(-1, map.get(42));
+        assertEquals(0, map.add(42));
+        assertEquals(1, map.add(-42));
+        assertEquals(0, map.add(42));
+        assertEquals(0, map.get(42));
+        assertEquals(1, map.get(-42));
+        assertEquals(-1, map.get(0));
+        assertEquals(2, map.size());
+        assertEquals(-42, map.key(1));
+    }
+
+    @Test
+    public void growKeepsEntries() {
+        LongIndexMap map = new LongIndexMap(8);
+        for (long key = 0; key < 1000; key++)
+            assertEquals(key, map.add(key * 1_000_003L));
+        assertTrue(map.capacity() >= 1000);
+        assertEquals(1000, map.size());
+        for (long key = 0; key < 1000; key++)
+            assertEquals(key, map.get(key * 1_000_003L));
+        assertEquals(-1, map.get(1));
+    }
+
+    @Test
+    public void compactRenumbersKeptEntries() {
+        LongIndexMap map = new LongIndexMap(8);
+        long[] values = new long[map.capacity()];
+        for (int i = 0; i < 8; i++)
+            values[map.add(100 + i)] = 100 + i;
+
+        Map<Integer, Integer> moves = new HashMap<>();
+        map.compact(i -> i % 2 == 1, (from, to) -> {
+            moves.put(from, to);
+            values[to] = values[from];
+        });
+
+        assertEquals(4, map.size());
+        assertEquals(4, moves.size());
+        assertEquals(Integer.valueOf(0), moves.get(1));
+        assertEquals(Integer.valueOf(3), moves.get(7));
+        for (int i = 0; i < 8; i++) {
+            int entry = map.get(100 + i);
+            if (i % 2 == 1) {
+                assertEquals(i / 2, entry);
+                assertEquals(100 + i, values[entry]);
+            } else {
+                assertEquals(-1, entry);
+            }
+        }
+        assertEquals(4, map.add(200));
+    }
+
+    @Test
+    public void clear() {
+        LongIndexMap map = new LongIndexMap(8);
+        map.add(1);
+        map.add(2);
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(1));
+        assertEquals(0, map.add(2));
+    }
+}
@@ -0,0 +1,121 @@
+package net.bdew.wurm.timerfix;
+
+import com.wurmonline.server.behaviours.Action;
+import com.wurmonline.server.creatures.Creature;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class TimerHooksTest {
+    private static final short PLAIN = 1, OVERRIDE = 150;
+
+    private void configure(Properties properties) {
+        TimerConfig.load(properties);
+        ActionTimer.governor = null;
+        ActionTimer.update(4f);
+        TimerHooks.rateLimiter = null;
+        TimerHooks.buildActionTable();
+        TimerHooks.buildZones();
+    }
+
+    @Before
+    public void setUp() {
+        Properties properties = new Properties();
+        // x2, 3 second floor, 10 second ceiling
+        properties.setProperty("actionTimers", OVERRIDE + ":2:3:10");
+        configure(properties);
+    }
+
+    @Test
+    public void scaleTimerClamps() {
+        assertEquals(25, TimerHooks.scaleTimer(100, PLAIN, null, 0));
+        assertEquals(25, TimerHooks.scaleTimer(100, -1, null, 0));
+        assertEquals(40, TimerHooks.scaleTimer(100, PLAIN, null, 40));
+        assertEquals(50, TimerHooks.scaleTimer(100, OVERRIDE, null, 0));
+        assertEquals(30, TimerHooks.scaleTimer(40, OVERRIDE, null, 0));
+        assertEquals(100, TimerHooks.scaleTimer(400, OVERRIDE, null, 0));
+
+        assertFalse(TimerHooks.timerClamped(100, PLAIN, null, 0));
+        assertTrue(TimerHooks.timerClamped(100, PLAIN, null, 40));
+        assertFalse(TimerHooks.timerClamped(100, OVERRIDE, null, 0));
+        assertTrue(TimerHooks.timerClamped(40, OVERRIDE, null, 0));
+        assertTrue(TimerHooks.timerClamped(400, OVERRIDE, null, 0));
+    }
+
+    @Test
+    public void countersFollowClampedTime() {
+        // Unclamped, the counter runs at the multiplier
+        assertEquals(2f, TimerHooks.scaleCounter(1f, 100, OVERRIDE, null, 0f), 1e-5f);
+        // 40 -> 30 by the floor, the counter runs 4/3 as fast so the action ends when the progress bar does
+        assertEquals(40f / 30f, TimerHooks.scaleCounter(1f, 40, OVERRIDE, null, 0f), 1e-5f);
+        // 400 -> 100 by the ceiling
+        assertEquals(4f, TimerHooks.scaleCounter(1f, 400, OVERRIDE, null, 0f), 1e-5f);
+        // Unknown time uses the multiplier
+        assertEquals(2f, TimerHooks.scaleCounter(1f, 0, OVERRIDE, null, 0f), 1e-5f);
+        assertEquals(5f, TimerHooks.scaleCounter(1f, 100, OVERRIDE, null, 5f), 0f);
+
+        assertFalse(TimerHooks.counterClamped(1f, 100, OVERRIDE, null, 0f));
+        assertTrue(TimerHooks.counterClamped(1f, 40, OVERRIDE, null, 0f));
+        assertTrue(TimerHooks.counterClamped(1f, 100, OVERRIDE, null, 5f));
+    }
+
+    @Test
+    public void scaleSecondSkipsFirstSecond() {
+        assertEquals(1, TimerHooks.scaleSecond(1, 100, PLAIN, null));
+        assertEquals(40, TimerHooks.scaleSecond(10, 100, PLAIN, null));
+        assertEquals(40, TimerHooks.scaleSecond(10, 400, OVERRIDE, null));
+        assertEquals(20, TimerHooks.scaleSecond(10, 0, OVERRIDE, null));
+    }
+
+    @Test
+    public void tickGateMatchesVanillaAtMultiplierOne() {
+        ActionTimer.update(1f);
+        Action act = new Action(PLAIN);
+        for (int second = 1; second <= 100; second++) {
+            act.setCounter(second);
+            assertEquals("second " + second, second % 5 == 0 ? 0 : 1, TimerHooks.tickGate(act, 5));
+        }
+    }
+
+    @Test
+    public void tickGatesScaleIndependently() {
+        Action act = new Action(OVERRIDE);
+        int every10 = 0, every4 = 0;
+        for (int second = 1; second <= 100; second++) {
+            act.setCounter(second);
+            if (TimerHooks.tickGate(act, 10) == 0) every10++;
+            if (TimerHooks.tickGate(act, 4) == 0) every4++;
+        }
+        assertEquals(20, every10);
+        assertEquals(50, every4);
+    }
+
+    @Test
+    public void rateLimitedActionsUseVanillaTimers() {
+        TimerHooks.rateLimiter = new ActionRateLimiter(1f, 1f);
+        Creature performer = new Creature(7, 0, 0);
+        assertEquals(25, TimerHooks.startTimer(100, PLAIN, performer, 0));
+        assertEquals(25, TimerHooks.scaleTimer(100, PLAIN, performer, 0));
+        assertEquals(100, TimerHooks.startTimer(100, PLAIN, performer, 0));
+        assertEquals(100, TimerHooks.scaleTimer(100, PLAIN, performer, 0));
+        assertEquals(1f, TimerHooks.multiplier(PLAIN, performer), 0f);
+        // Floors and ceilings still apply
+        assertEquals(100, TimerHooks.startTimer(400, OVERRIDE, performer, 0));
+        assertEquals(25, TimerHooks.startTimer(100, PLAIN, new Creature(8, 0, 0), 0));
+    }
+
+    @Test
+    public void zonesOverrideActionMultiplier() {
+        Properties properties = new Properties();
+        properties.setProperty("actionTimers", OVERRIDE + ":2:3:10");
+        properties.setProperty("timerZones", "0:0:10:10:8");
+        configure(properties);
+        assertEquals(10, TimerHooks.startTimer(80, PLAIN, new Creature(1, 5, 5), 0));
+        assertEquals(30, TimerHooks.startTimer(80, OVERRIDE, new Creature(1, 5, 5), 0));
+        assertEquals(20, TimerHooks.startTimer(80, PLAIN, new Creature(1, 11, 5), 0));
+        assertEquals(20, TimerHooks.startTimer(80, PLAIN, null, 0));
+    }
+}
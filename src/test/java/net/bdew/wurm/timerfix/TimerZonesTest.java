@@ -0,0 +1,84 @@
+package net.bdew.wurm.timerfix;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerZonesTest {
+    @Before
+    public void setUp() {
+        ActionTimer.governor = null;
+    }
+
+    @Test
+    public void noZones() {
+        assertNull(TimerZones.compile(Collections.emptyList(), 64));
+    }
+
+    @Test
+    public void edgesAreExact() {
+        TimerZones zones = TimerZones.compile(Collections.singletonList(new TimerZones.Zone(10, 20, 12, 21, 3f, 0)), 64);
+        assertEquals(3f, zones.multiplier(10, 20), 0f);
+        assertEquals(3f, zones.multiplier(12, 21), 0f);
+        assertEquals(0f, zones.multiplier(9, 20), 0f);
+        assertEquals(0f, zones.multiplier(13, 21), 0f);
+        assertEquals(0f, zones.multiplier(10, 22), 0f);
+        assertEquals(0f, zones.multiplier(-1, -1), 0f);
+        assertEquals(0f, zones.multiplier(5000, 5000), 0f);
+    }
+
+    @Test
+    public void higherPriorityWins() {
+        TimerZones zones = TimerZones.compile(Arrays.asList(
+                new TimerZones.Zone(0, 0, 200, 200, 2f, 0),
+                new TimerZones.Zone(50, 50, 60, 60, 5f, 1)
+        ), 64);
+        assertEquals(5f, zones.multiplier(55, 55), 0f);
+        assertEquals(2f, zones.multiplier(61, 55), 0f);
+        assertEquals(2f, zones.multiplier(150, 150), 0f);
+    }
+
+    @Test
+    public void earlierZoneWinsTies() {
+        TimerZones zones = TimerZones.compile(Arrays.asList(
+                new TimerZones.Zone(0, 0, 100, 100, 2f, 1),
+                new TimerZones.Zone(50, 50, 150, 150, 4f, 1)
+        ), 16);
+        assertEquals(2f, zones.multiplier(75, 75), 0f);
+        assertEquals(4f, zones.multiplier(125, 125), 0f);
+
+        TimerZones reversed = TimerZones.compile(Arrays.asList(
+                new TimerZones.Zone(50, 50, 150, 150, 4f, 1),
+                new TimerZones.Zone(0, 0, 100, 100, 2f, 1)
+        ), 16);
+        assertEquals(4f, reversed.multiplier(75, 75), 0f);
+    }
+
+    @Test
+    public void matchesBruteForce() {
+        Random rnd = new Random(1);
+        TimerZones.Zone[] list = new TimerZones.Zone[40];
+        for (int i = 0; i < list.length; i++) {
+            int x = rnd.nextInt(500), y = rnd.nextInt(500);
+            list[i] = new TimerZones.Zone(x, y, x + rnd.nextInt(100), y + rnd.nextInt(100), i + 1, rnd.nextInt(3));
+        }
+        TimerZones zones = TimerZones.compile(Arrays.asList(list), 32);
+        for (int n = 0; n < 20000; n++) {
+            int x = rnd.nextInt(620), y = rnd.nextInt(620);
+            float expected = 0f;
+            int best = Integer.MIN_VALUE;
+            for (TimerZones.Zone zone : list) {
+                if (x >= zone.x1 && y >= zone.y1 && x <= zone.x2 && y <= zone.y2 && zone.priority > best) {
+                    best = zone.priority;
+                    expected = zone.multiplier;
+                }
+            }
+            assertEquals("tile " + x + "," + y, expected, zones.multiplier(x, y), 0f);
+        }
+    }
+}